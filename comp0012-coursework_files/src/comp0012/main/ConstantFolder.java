@@ -1,31 +1,51 @@
 package comp0012.main;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.reflect.Field;
 import java.util.Stack;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.HashSet;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 
+import org.apache.bcel.classfile.Attribute;
+import org.apache.bcel.classfile.BootstrapMethod;
+import org.apache.bcel.classfile.BootstrapMethods;
 import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.Code;
 import org.apache.bcel.classfile.JavaClass;
 import org.apache.bcel.classfile.Method;
 import org.apache.bcel.generic.*;
 import org.apache.bcel.classfile.ConstantPool;
 import org.apache.bcel.classfile.Constant;
+import org.apache.bcel.classfile.ConstantCP;
+import org.apache.bcel.classfile.ConstantInvokeDynamic;
+import org.apache.bcel.classfile.ConstantMethodHandle;
+import org.apache.bcel.classfile.ConstantMethodType;
+import org.apache.bcel.classfile.ConstantNameAndType;
+import org.apache.bcel.classfile.ConstantObject;
+import org.apache.bcel.classfile.ConstantUtf8;
 import org.apache.bcel.Constants;
+import org.apache.bcel.Repository;
+import org.apache.bcel.verifier.VerificationResult;
+import org.apache.bcel.verifier.Verifier;
+import org.apache.bcel.verifier.VerifierFactory;
 
 public class ConstantFolder {
-	ClassParser parser = null;
-	ClassGen gen = null;
+	private static final ObjectType STRING_BUILDER = new ObjectType("java.lang.StringBuilder");
+	private static Map<?, ?> verifiers = null; // VerifierFactory's cache of verifiers by class name
 
 	JavaClass original = null;
 	JavaClass optimized = null;
 
-	Stack<Number> constantStack = null; // Store all constants
+	Stack<Object> constantStack = null; // Store all constants, either a Number or a String
 
-	HashMap<Integer, Number> variableMap = null; // Store variable index and constant in that variable
+	HashMap<Integer, Object> variableMap = null; // Store variable index and constant in that variable
 
 	Stack<InstructionHandle> pushAndLoadInstructions = null; // Store all push and load instructions
 
@@ -33,20 +53,51 @@ public class ConstantFolder {
 
 	HashMap<Integer, Integer> variableRefCount = null; // Store the number of times the variable is referenced
 
-	boolean deleteElse;
+	HashSet<InstructionHandle> elseGotos = null; // Store the gotos jumping over else branches of ifs that always fall through
 	boolean ifInLoop;
+	boolean switchUnresolved; // A switch kept its dispatch, so later branch targets are reached from more than one path
+	boolean invokeDynamicKept; // A method was left as it was because a call site in it could not be folded or rewritten
+	boolean changed; // The code of at least one method was rewritten and is kept in the optimised class
+
+	boolean verbose = true; // Print progress and instruction dumps to stdout
+
+	boolean foldLoops = true; // Fold methods with backward branches, see setFoldLoops
+
+	List<MethodSizeChange> methodSizeChanges = new ArrayList<MethodSizeChange>(); // Bytecode size of every method before and after folding
 
 	public ConstantFolder(String classFilePath) {
 		System.out.println("Class: " + classFilePath);
 		try {
-			this.parser = new ClassParser(classFilePath);
-			this.original = this.parser.parse();
-			this.gen = new ClassGen(this.original);
+			this.original = new ClassParser(classFilePath).parse();
 		} catch(IOException e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Build a folder straight from class file bytes, e.g. as handed to a ClassFileTransformer.
+	 * Unlike the path constructor, a malformed class is reported to the caller instead of printed.
+	 */
+	public ConstantFolder(byte[] classBytes, String className) throws IOException {
+		this.original = new ClassParser(new ByteArrayInputStream(classBytes), className).parse();
+	}
+
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Leave every method with a backward branch as it was.
+	 * The structural verifier cannot catch a wrongly folded loop-carried value, so unattended runs on unknown code turn this off.
+	 */
+	public void setFoldLoops(boolean foldLoops) {
+		this.foldLoops = foldLoops;
+	}
+
+	private void log(Object message) {
+		if (verbose) System.out.println(message);
+	}
+
 	public void printConstants(ConstantPoolGen cpgen) {
 		ConstantPool cp = cpgen.getConstantPool();
 		int length = cp.getLength();
@@ -57,7 +108,7 @@ public class ConstantFolder {
 			// Check if the constant is of specific types: Integer, Long, Float, Double
 			if (constant != null &&
 					(constant.getTag() == Constants.CONSTANT_Integer || constant.getTag() == Constants.CONSTANT_Long || constant.getTag() == Constants.CONSTANT_Float || constant.getTag() == Constants.CONSTANT_Double)) {
-				System.out.println("Constant #" + i + ": " + constant);
+				log("Constant #" + i + ": " + constant);
 			}
 		}
 	}
@@ -65,13 +116,14 @@ public class ConstantFolder {
 	public void printInstructions(ClassGen cgen) {
 		Method[] methods = cgen.getMethods();
 		for (Method method : methods) {
+			if (method.getCode() == null) continue;
 			InstructionList il = new InstructionList(method.getCode().getCode());
 			InstructionHandle[] handles = il.getInstructionHandles();
 
-			System.out.println("Instructions for method: " + method.getName());
+			log("Instructions for method: " + method.getName());
 
 			for (InstructionHandle handle : handles) {
-				System.out.println(handle.getInstruction());
+				log(handle.getInstruction());
 			}
 		}
 	}
@@ -83,58 +135,128 @@ public class ConstantFolder {
 
 		ConstantPoolGen cpgen = cgen.getConstantPool();
 
-		System.out.println("---BEFORE OPTIMISATION---");
-		printConstants(cpgen);
-		printInstructions(cgen);
+		if (verbose) {
+			log("---BEFORE OPTIMISATION---");
+			printConstants(cpgen);
+			printInstructions(cgen);
+		}
 
 		// Implement the optimisation
-		System.out.println("Start Optimisation");
+		log("Start Optimisation");
+		invokeDynamicKept = false;
+		changed = false;
 		Method[] methods = cgen.getMethods();
 		for (Method method : methods) {
+			// Abstract and native methods have no code to fold
+			if (method.getCode() == null) continue;
 			// Initialise data structure for every method
-			System.out.println("Method Name:" + method.getName());
-			constantStack = new Stack<Number>();
-			variableMap = new HashMap<Integer, Number>();
+			log("Method Name:" + method.getName());
+			constantStack = new Stack<Object>();
+			variableMap = new HashMap<Integer, Object>();
 			pushAndLoadInstructions = new Stack<InstructionHandle>();
 			loopPositions = new ArrayList<InstructionHandle>();
 			variableRefCount = new HashMap<Integer, Integer>();
 			ifInLoop = false;
-			deleteElse = false;
-			performOptimisation(cgen, cpgen, method);
+			switchUnresolved = false;
+			elseGotos = new HashSet<InstructionHandle>();
+			try {
+				performOptimisation(cgen, cpgen, method);
+			} catch (RuntimeException e) {
+				// The method is only replaced once folding succeeds, so the original code is kept
+				log("Skipping method " + method.getName() + ": " + e);
+			}
+			// The whole class is kept as it was, folding the remaining methods would be wasted
+			if (invokeDynamicKept) break;
+			Method result = cgen.containsMethod(method.getName(), method.getSignature());
+			// A method that was not folded, e.g. one with exception handlers, still needs its concatenations in version 50 form
+			if (containsInvokeDynamic(new Method[] {result})) result = rewriteStringConcatInstructions(cgen, cpgen, result);
+			changed = changed || !Arrays.equals(method.getCode().getCode(), result.getCode().getCode());
+			methodSizeChanges.add(new MethodSizeChange(cgen.getClassName(), method.getName() + method.getSignature(),
+					method.getCode().getCode().length, result.getCode().getCode().length));
 		}
 
-		System.out.println("---AFTER OPTIMISATION---");
-		printConstants(cpgen);
-		printInstructions(cgen);
+		if (invokeDynamicKept) {
+			// The call site cannot be written as version 50, so none of the folding in the other methods can be used either
+			log("Keeping original class, a call site could not be folded");
+			this.optimized = original;
+			methodSizeChanges.clear();
+			changed = false;
+		} else {
+			// Only methods that were never rewritten can still hold a call site here, so their code reads back fine
+			if (!containsInvokeDynamic(cgen.getMethods())) removeInvokeDynamicConstants(cgen, cpgen);
+
+			if (verbose) {
+				log("---AFTER OPTIMISATION---");
+				printConstants(cpgen);
+				printInstructions(cgen);
+			}
 
-		this.optimized = cgen.getJavaClass();
+			this.optimized = cgen.getJavaClass();
+		}
+		if (optimized != original && requiresModernClassFile()) {
+			// Call sites that could not be folded or nestmate access cannot be written as version 50, keep the class as it was
+			log("Keeping original class, it needs a newer class file version");
+			this.optimized = original;
+			methodSizeChanges.clear();
+			changed = false;
+		}
+
+		// The per-method state holds instruction handles, which keep the last method's instruction list alive
+		constantStack = null;
+		variableMap = null;
+		pushAndLoadInstructions = null;
+		loopPositions = null;
+		variableRefCount = null;
+		elseGotos = null;
 	}
 
 	public void performOptimisation(ClassGen cgen, ConstantPoolGen cpgen, Method method) {
+		// The rebuilt instruction list cannot carry exception handlers
+		if (method.getCode().getExceptionTable().length > 0) return;
+
 		// Get the method's instruction list of raw byte code
 		InstructionList il = new InstructionList(method.getCode().getCode());
 
 		MethodGen methodGen = new MethodGen(method.getAccessFlags(), method.getReturnType(), method.getArgumentTypes(), null, method.getName(), cgen.getClassName(), il, cpgen);
+		copyMethodAttributes(method, methodGen);
 
 		InstructionHandle[] handles = il.getInstructionHandles();
 
 		findLoopPositions(il);
+		if (!foldLoops && !loopPositions.isEmpty()) return;
 
 		// Iterate through all the instructions and perform constant folding optimisation according to their type
 		for (InstructionHandle handle : handles) {
+			// Skip instructions already removed as part of a dead branch
+			if (isDeleted(il, handle)) continue;
 			Instruction instruction = handle.getInstruction();
+			// Constants stored on one path into a join point do not hold on the others
+			if (switchUnresolved && handle.hasTargeters()) variableMap.clear();
+			// A loop may run any number of times, including none, so neither its head nor its exit knows what it stored
+			forgetLoopVariables(handle);
 
 			if (instruction instanceof ArithmeticInstruction) optimiseArithmeticInstruction(il, handle, cpgen);
 			else if (instruction instanceof LoadInstruction) optimiseLoadInstruction(handle);
 			else if (isConstantLoadOrPushInstruction(instruction)) optimiseConstantLoadOrPushInstruction(handle, cpgen);
 			else if (instruction instanceof StoreInstruction) optimiseStoreInstruction(handle);
+			else if (instruction instanceof IINC) optimiseIncrementInstruction(handle);
 			else if (instruction instanceof ConversionInstruction) optimiseConversionInstruction(il, handle, cpgen);
 			else if (instruction instanceof IfInstruction) optimiseIfComparisonInstruction(il, handle);
 			else if (instruction instanceof LCMP) optimiseLongComparisonInstruction(il, handle, cpgen);
 			else if (instruction instanceof GotoInstruction) optimiseGoToInstruction(il, handle);
+			else if (instruction instanceof Select) optimiseSwitchInstruction(il, handle, cpgen);
+			else if (instruction instanceof INVOKEDYNAMIC) optimiseStringConcatInstruction(il, handle, cgen, cpgen);
+			else if (instruction instanceof InvokeInstruction) optimiseInvokeInstruction(il, handle, cpgen);
 			else ifInLoop = false;
 		}
 
+		rewriteStringConcatInstructions(il, methodGen, cgen, cpgen);
+		if (containsInvokeDynamic(il)) {
+			// BCEL writes invokedynamic without its operands, so the rewritten code could not even be read back
+			invokeDynamicKept = true;
+			return;
+		}
+
 		methodGen.setMaxStack();
 		methodGen.setMaxLocals();
 		Method optimisedMethod = methodGen.getMethod();
@@ -144,18 +266,23 @@ public class ConstantFolder {
 		cgen.replaceMethod(method, cleanCodeMethod);
 	}
 
+	private static void copyMethodAttributes(Method method, MethodGen methodGen) {
+		// Keep annotations, throws clauses and signatures, only the Code attribute is regenerated
+		for (Attribute attribute : method.getAttributes()) {
+			if (!(attribute instanceof Code)) methodGen.addAttribute(attribute);
+		}
+	}
+
 	public void findVariableRefCounts(InstructionList il) {
 		InstructionHandle[] handles = il.getInstructionHandles();
 
 		for (InstructionHandle handle: handles) {
 			Instruction instruction = handle.getInstruction();
-			if (instruction instanceof StoreInstruction) {
-				int key = ((StoreInstruction) instruction).getIndex();
-				variableRefCount.put(key, 1);
-			}
-			else if (instruction instanceof LoadInstruction && !(instruction instanceof ALOAD)) {
-				int key = ((LoadInstruction) instruction).getIndex();
-				variableRefCount.put(key, variableRefCount.get(key) + 1);
+			// Count every read of a local anywhere in the method, a later store does not make an earlier value dead
+			// since branches and loops can still reach loads of it. An increment reads the variable too
+			if (instruction instanceof LoadInstruction || instruction instanceof IINC) {
+				int key = ((LocalVariableInstruction) instruction).getIndex();
+				variableRefCount.put(key, variableRefCount.getOrDefault(key, 0) + 1);
 			}
 		}
 	}
@@ -164,6 +291,7 @@ public class ConstantFolder {
 		InstructionList il = new InstructionList(method.getCode().getCode());
 
 		MethodGen methodGen = new MethodGen(method.getAccessFlags(), method.getReturnType(), method.getArgumentTypes(), null, method.getName(), cgen.getClassName(), il, cpgen);
+		copyMethodAttributes(method, methodGen);
 
 		InstructionHandle[] handles = il.getInstructionHandles();
 
@@ -171,12 +299,13 @@ public class ConstantFolder {
 		// Count the number of times each variable is referenced
 		findVariableRefCounts(il);
 
-		// Iterate through instructions and if refCount is 1 then pop the previous two instructions
+		// Iterate through instructions and if a stored variable is never read then pop the previous two instructions
 		for (InstructionHandle handle: handles) {
 			Instruction instruction = handle.getInstruction();
 			if (instruction instanceof StoreInstruction) {
 				int key = ((StoreInstruction) instruction).getIndex();
-				if (variableRefCount.get(key) == 1) {
+				// Only a store fed directly by a constant can be removed together with that constant
+				if (!variableRefCount.containsKey(key) && !pushAndLoadInstructions.isEmpty() && pushAndLoadInstructions.peek() == handle.getPrev()) {
 					InstructionHandle prev = pushAndLoadInstructions.pop();
 					deleteInstruction(il,prev);
 					deleteInstruction(il,handle);
@@ -194,14 +323,20 @@ public class ConstantFolder {
 
 	public void optimiseArithmeticInstruction(InstructionList il, InstructionHandle handle, ConstantPoolGen cpgen) {
 		if (!ifInLoop) {
-			System.out.println("---Optimising Arithmetic Instruction---");
+			log("---Optimising Arithmetic Instruction---");
 			Instruction instruction = handle.getInstruction();
+			int operands = isNegation(instruction) ? 1 : 2;
+			if (!hasOwnOperands(handle, operands) || !hasConstantOperands(operands)) {
+				// An operand is not a known constant, e.g. a parameter or a call result, so the result is unknown as well
+				pushUnknownResult(handle, operands);
+				return;
+			}
 			// Calculate the result of arithmetic operation
 			Number result = performArithmeticOperation(instruction);
 			constantStack.push(result);
 			deleteInstruction(il, pushAndLoadInstructions.pop());
 			deleteInstruction(il, pushAndLoadInstructions.pop());
-			Number value = constantStack.peek();
+			Object value = constantStack.peek();
 			// Load the result into the constant pool and generate new load instruction
 			Instruction newLoadInstruction = generateNewLoadInstruction(value, cpgen);
 			// Replace the instruction with the new load instruction
@@ -210,9 +345,49 @@ public class ConstantFolder {
 		}
 	}
 
+	private static boolean isNegation(Instruction instruction) {
+		return instruction instanceof INEG || instruction instanceof LNEG || instruction instanceof FNEG || instruction instanceof DNEG;
+	}
+
+	/**
+	 * Whether the top operands tracked on the stacks were pushed by the instructions right before this one, with no jump into them.
+	 * Instructions that are not modelled, e.g. calls or field accesses, push nothing and may consume tracked values,
+	 * so otherwise the top of the stacks belongs to earlier code.
+	 */
+	private boolean hasOwnOperands(InstructionHandle handle, int operands) {
+		if (pushAndLoadInstructions.size() < operands) return false;
+		InstructionHandle expected = handle;
+		for (int i = 1; i <= operands; i++) {
+			if (expected.hasTargeters() || expected.getPrev() == null
+					|| pushAndLoadInstructions.get(pushAndLoadInstructions.size() - i) != expected.getPrev()) return false;
+			expected = expected.getPrev();
+		}
+		return true;
+	}
+
+	// Track a result that is not a known constant, so later folding that consumes it gives up
+	private void pushUnknownResult(InstructionHandle handle, int operands) {
+		if (hasOwnOperands(handle, operands)) {
+			for (int i = 0; i < operands; i++) {
+				constantStack.pop();
+				pushAndLoadInstructions.pop();
+			}
+		}
+		constantStack.push(null);
+		pushAndLoadInstructions.push(handle);
+	}
+
+	private boolean hasConstantOperands(int operands) {
+		if (constantStack.size() < operands) return false;
+		for (int i = 1; i <= operands; i++) {
+			if (constantStack.get(constantStack.size() - i) == null) return false;
+		}
+		return true;
+	}
+
 	public Number performArithmeticOperation(Instruction operator) {
-		Number second = constantStack.pop();
-		Number first = constantStack.pop();
+		Number second = (Number) constantStack.pop();
+		Number first = (Number) constantStack.pop();
 		Number result;
 
 		// Integer Operations
@@ -247,11 +422,12 @@ public class ConstantFolder {
 	public void optimiseLoadInstruction(InstructionHandle handle) {
 		Instruction instruction = handle.getInstruction();
 
-		if (!(instruction instanceof ALOAD)) {
-			System.out.println("---Optimising Load Instruction---");
+		// References are only tracked when the variable holds a String constant
+		if (!(instruction instanceof ALOAD) || variableMap.get(((ALOAD) instruction).getIndex()) instanceof String) {
+			log("---Optimising Load Instruction---");
 			int key = ((LoadInstruction) instruction).getIndex();
 			// Retrieve the constant using the variable index
-			Number value = variableMap.get(key);
+			Object value = variableMap.get(key);
 			constantStack.push(value);
 			pushAndLoadInstructions.push(handle);
 			// Check if we are in a loop and update the boolean
@@ -267,8 +443,8 @@ public class ConstantFolder {
 	}
 
 	public void optimiseConstantLoadOrPushInstruction(InstructionHandle handle, ConstantPoolGen cpgen) {
-		System.out.println("---Optimising Constant Load and Push Instruction---");
-		Number value;
+		log("---Optimising Constant Load and Push Instruction---");
+		Object value;
 		Instruction instruction = handle.getInstruction();
 
 		if (instruction instanceof ICONST) value = ((ICONST) instruction).getValue();
@@ -277,7 +453,7 @@ public class ConstantFolder {
 		else if (instruction instanceof DCONST) value = ((DCONST) instruction).getValue();
 		else if (instruction instanceof BIPUSH) value = ((BIPUSH) instruction).getValue();
 		else if (instruction instanceof SIPUSH) value = ((SIPUSH) instruction).getValue();
-		else if (instruction instanceof LDC) value = (Number) ((LDC) instruction).getValue(cpgen);
+		else if (instruction instanceof LDC) value = ((LDC) instruction).getValue(cpgen);
 		else if (instruction instanceof LDC2_W) value = ((LDC2_W) instruction).getValue(cpgen);
 		else throw new IllegalArgumentException("Invalid instruction for load or push");
 
@@ -287,15 +463,31 @@ public class ConstantFolder {
 	}
 
 	public void optimiseStoreInstruction(InstructionHandle handle) {
-		System.out.println("---Optimising Store Instruction---");
+		log("---Optimising Store Instruction---");
 		Instruction instruction = handle.getInstruction();
 		int key = ((StoreInstruction) instruction).getIndex();
-		Number value = constantStack.pop();
+		if (pushAndLoadInstructions.isEmpty() || pushAndLoadInstructions.peek() != handle.getPrev()) {
+			// The value did not come from a tracked constant (e.g. a call), forget anything previously held in the variable
+			variableMap.remove(key);
+			return;
+		}
+		Object value = constantStack.pop();
 		// Store the variable index and constant into variableMap
 		variableMap.put(key, value);
 		pushAndLoadInstructions.pop();
 	}
 
+	public void optimiseIncrementInstruction(InstructionHandle handle) {
+		log("---Optimising Increment Instruction---");
+		IINC instruction = (IINC) handle.getInstruction();
+		int key = instruction.getIndex();
+		Object value = variableMap.get(key);
+		// In a loop the increment runs an unknown number of times, so the variable is no longer a constant
+		if (value instanceof Integer && !isInLoop(handle)) variableMap.put(key, (Integer) value + instruction.getIncrement());
+		else variableMap.remove(key);
+		ifInLoop = false;
+	}
+
 	public void optimiseConversionInstruction (InstructionList il, InstructionHandle handle, ConstantPoolGen cpgen) {
 		if (!ifInLoop) {
 			Instruction instruction = handle.getInstruction();
@@ -304,7 +496,14 @@ public class ConstantFolder {
 			boolean toFloatInstruction = instruction instanceof I2F || instruction instanceof L2F || instruction instanceof D2F;
 			boolean toDoubleInstruction = instruction instanceof I2D || instruction instanceof L2D || instruction instanceof F2D;
 
-			Number value = constantStack.pop();
+			if (!hasOwnOperands(handle, 1) || !hasConstantOperands(1)
+					|| !(toIntegerInstruction || toLongInstruction || toFloatInstruction || toDoubleInstruction)) {
+				// Unknown operand, or a narrowing to byte, char or short which is not folded, so the result is unknown
+				pushUnknownResult(handle, 1);
+				return;
+			}
+
+			Number value = (Number) constantStack.pop();
 			Number convertedValue = null;
 
 			// Convert the constant to the type required
@@ -315,7 +514,7 @@ public class ConstantFolder {
 
 			constantStack.push(convertedValue);
 			deleteInstruction(il, pushAndLoadInstructions.pop());
-			Number finalValue = constantStack.peek();
+			Object finalValue = constantStack.peek();
 			// Load the result into the constant pool and generate new load instruction
 			Instruction newLoadInstruction = generateNewLoadInstruction(finalValue, cpgen);
 			// Replace the instruction with the new load instruction
@@ -326,27 +525,41 @@ public class ConstantFolder {
 
 	public void optimiseIfComparisonInstruction(InstructionList il, InstructionHandle handle) {
 		if(!ifInLoop) {
-			System.out.print("---Optimising If Comparison Instruction---");
+			log("---Optimising If Comparison Instruction---");
 			IfInstruction instruction = (IfInstruction) handle.getInstruction();
+			// A backward branch closes a loop, taking it runs the body again instead of skipping code
+			if (instruction.getTarget().getPosition() <= handle.getPosition()) return;
+			if (!hasOwnOperands(handle, zeroComparison(instruction) ? 1 : 2)) {
+				// Constants stored on only one side of the branch would be taken as known after it, give up on the method as for unknown operands
+				throw new IllegalStateException("Comparison operands are not tracked");
+			}
 
-			// Perform comparison and get the result
+			// Perform comparison and get the result, javac jumps over the if body when the source condition is false
 			if (getComparisonResult(il, instruction)) {
-				// True outcome, delete the else branch
-				deleteInstruction(il, handle);
-				deleteElse = true;
-			} else {
-				// False outcome, delete the instructions within the comparison
+				// Jump taken, delete the instructions within the comparison
 				InstructionHandle target = instruction.getTarget();
 				deleteMultipleInstructions(il, handle, target.getPrev());
+			} else {
+				// Falls through, an if/else ends its body with a forward goto over the else branch, delete that branch too
+				InstructionHandle bodyEnd = instruction.getTarget().getPrev();
+				if (bodyEnd.getInstruction() instanceof GotoInstruction
+						&& ((GotoInstruction) bodyEnd.getInstruction()).getTarget().getPosition() > bodyEnd.getPosition()) {
+					elseGotos.add(bodyEnd);
+				}
+				deleteInstruction(il, handle);
 			}
 		}
 	}
 
 	public void optimiseLongComparisonInstruction(InstructionList il, InstructionHandle handle, ConstantPoolGen cpgen) {
 		if (!ifInLoop) {
-			System.out.println("---Optimising Long Comparison Instruction---");
-			long first = (Long) constantStack.pop();
+			if (!hasOwnOperands(handle, 2) || !hasConstantOperands(2)) {
+				pushUnknownResult(handle, 2);
+				return;
+			}
+			log("---Optimising Long Comparison Instruction---");
 			long second = (Long) constantStack.pop();
+			long first = (Long) constantStack.pop();
 
 			int output;
 			// Perform long comparison and return the number representing the result
@@ -366,25 +579,156 @@ public class ConstantFolder {
 	}
 
 	public void optimiseGoToInstruction(InstructionList il, InstructionHandle handle) {
-		if(deleteElse) {
-			// If deleteElse is set to true, delete the else branch
-			System.out.println("---Optimising Goto Instruction---");
+		if(elseGotos.remove(handle)) {
+			// This goto skips the else branch of an if that always falls through, delete the else branch
+			log("---Optimising Goto Instruction---");
 			GotoInstruction instruction = (GotoInstruction) handle.getInstruction();
 			InstructionHandle target = instruction.getTarget();
 			deleteMultipleInstructions(il, handle, target.getPrev());
-			deleteElse = false;
 		}
 	}
 
+	public void optimiseSwitchInstruction(InstructionList il, InstructionHandle handle, ConstantPoolGen cpgen) {
+		Select instruction = (Select) handle.getInstruction();
+		boolean selectorOnStack = !pushAndLoadInstructions.isEmpty() && pushAndLoadInstructions.peek() == handle.getPrev();
+		InstructionHandle target = null;
+
+		if (!ifInLoop && selectorOnStack && constantStack.peek() instanceof Integer) {
+			// Constant selector, only the matching case (or the default) can ever run
+			int key = (Integer) constantStack.peek();
+			target = instruction.getTarget();
+			int[] matches = instruction.getMatchs();
+			for (int i = 0; i < matches.length; i++) {
+				if (matches[i] == key) target = instruction.getTargets()[i];
+			}
+			// The scan follows the code in order, so only a case laid out after the switch can be folded into it
+			if (target.getPosition() <= handle.getPosition()) target = null;
+		}
+
+		if (selectorOnStack) {
+			constantStack.pop();
+			InstructionHandle selector = pushAndLoadInstructions.pop();
+			if (target != null) deleteInstruction(il, selector);
+		}
+		ifInLoop = false;
+
+		if (target != null) {
+			log("---Optimising Switch Instruction---");
+			handle.setInstruction(new GOTO(target));
+		} else if (!narrowSwitchInstruction(il, handle, cpgen)) {
+			switchUnresolved = true;
+			return;
+		}
+		if (handle.getInstruction() instanceof Select) switchUnresolved = true;
+
+		// Cases that only the old dispatch jumped to are dead now, and breaks out of the remaining case jump to the next instruction
+		removeUnreachableInstructions(il);
+		for (InstructionHandle current : il.getInstructionHandles()) {
+			if (current.getInstruction() instanceof GotoInstruction && ((GotoInstruction) current.getInstruction()).getTarget() == current.getNext()) {
+				deleteInstruction(il, current);
+			}
+		}
+	}
+
+	/**
+	 * Drop the cases a switch can never take because its selector is masked, shifted, reduced or truncated just before it.
+	 * If every remaining key has a case the default is dead, and a switch left with one target becomes a goto.
+	 * Returns whether the switch was changed.
+	 */
+	private boolean narrowSwitchInstruction(InstructionList il, InstructionHandle handle, ConstantPoolGen cpgen) {
+		long[] range = getSelectorRange(handle, cpgen);
+		if (range == null) return false;
+
+		Select instruction = (Select) handle.getInstruction();
+		int[] matches = instruction.getMatchs();
+		InstructionHandle[] targets = instruction.getTargets();
+		List<Integer> keptMatches = new ArrayList<Integer>();
+		List<InstructionHandle> keptTargets = new ArrayList<InstructionHandle>();
+		for (int i = 0; i < matches.length; i++) {
+			if (matches[i] >= range[0] && matches[i] <= range[1]) {
+				keptMatches.add(matches[i]);
+				keptTargets.add(targets[i]);
+			}
+		}
+
+		InstructionHandle defaultTarget = instruction.getTarget();
+		if (!keptTargets.isEmpty() && keptMatches.size() == range[1] - range[0] + 1) {
+			defaultTarget = keptTargets.get(keptTargets.size() - 1);
+		}
+		if (keptMatches.size() == matches.length && defaultTarget == instruction.getTarget()) return false;
+		log("---Narrowing Switch Instruction---");
+
+		boolean singleTarget = true;
+		for (InstructionHandle keptTarget : keptTargets) {
+			singleTarget = singleTarget && keptTarget == defaultTarget;
+		}
+		if (singleTarget) {
+			// The selector is still computed, drop it before jumping
+			il.insert(handle, new POP());
+			handle.setInstruction(new GOTO(defaultTarget));
+			return true;
+		}
+
+		int[] newMatches = new int[keptMatches.size()];
+		for (int i = 0; i < newMatches.length; i++) {
+			newMatches[i] = keptMatches.get(i);
+		}
+		InstructionHandle[] newTargets = keptTargets.toArray(new InstructionHandle[0]);
+		// BCEL compares targeters with equals, which fails on a switch still being built next to the old one,
+		// so park the handle on a goto to itself to release the old switch's targets first
+		handle.setInstruction(new GOTO(handle));
+		// Keys inside a range stay contiguous, so a tableswitch remains one
+		if (instruction instanceof TABLESWITCH) handle.setInstruction(new TABLESWITCH(newMatches, newTargets, defaultTarget));
+		else handle.setInstruction(new LOOKUPSWITCH(newMatches, newTargets, defaultTarget));
+		return true;
+	}
+
+	// Returns {min, max} of the selector when the instruction before the switch bounds it, or null if it could be any int
+	private static long[] getSelectorRange(InstructionHandle handle, ConstantPoolGen cpgen) {
+		InstructionHandle producer = handle.getPrev();
+		// Another path into the switch could bring a selector computed some other way
+		if (handle.hasTargeters() || producer == null || producer.hasTargeters()) return null;
+		Instruction instruction = producer.getInstruction();
+
+		if (instruction instanceof I2B) return new long[] {Byte.MIN_VALUE, Byte.MAX_VALUE};
+		else if (instruction instanceof I2C) return new long[] {Character.MIN_VALUE, Character.MAX_VALUE};
+		else if (instruction instanceof I2S) return new long[] {Short.MIN_VALUE, Short.MAX_VALUE};
+
+		InstructionHandle operand = producer.getPrev();
+		if (operand == null || operand.hasTargeters()) return null;
+		Integer value = getIntConstant(operand.getInstruction(), cpgen);
+		if (value == null) return null;
+
+		if (instruction instanceof IAND && value >= 0) return new long[] {0, value};
+		else if (instruction instanceof IREM && value != 0) {
+			long bound = Math.abs((long) value) - 1;
+			return new long[] {-bound, bound};
+		}
+		else if (instruction instanceof IUSHR && (value & 31) != 0) return new long[] {0, -1 >>> (value & 31)};
+		else if (instruction instanceof ISHR) return new long[] {Integer.MIN_VALUE >> (value & 31), Integer.MAX_VALUE >> (value & 31)};
+		return null;
+	}
+
+	private static Integer getIntConstant(Instruction instruction, ConstantPoolGen cpgen) {
+		if (instruction instanceof ICONST || instruction instanceof BIPUSH || instruction instanceof SIPUSH) {
+			return ((ConstantPushInstruction) instruction).getValue().intValue();
+		}
+		if (instruction instanceof LDC && ((LDC) instruction).getValue(cpgen) instanceof Integer) {
+			return (Integer) ((LDC) instruction).getValue(cpgen);
+		}
+		return null;
+	}
+
 	private static boolean zeroComparison(Instruction instruction) {
 		return instruction instanceof IFLE || instruction instanceof IFLT || instruction instanceof IFGE ||
 				instruction instanceof IFGT || instruction instanceof IFEQ || instruction instanceof IFNE;
 	}
 
+	// Returns whether the branch is taken, i.e. the bytecode condition with value1 below value2 on the stack
 	private boolean getComparisonResult(InstructionList il, IfInstruction instruction) {
 		if (zeroComparison(instruction)) {
 			deleteInstruction(il, pushAndLoadInstructions.pop());
-			Number num = constantStack.pop();
+			Number num = (Number) constantStack.pop();
 			if (instruction instanceof IFLE) return num.intValue() <= 0;
 			else if (instruction instanceof  IFLT) return num.intValue() < 0;
 			else if (instruction instanceof  IFEQ) return num.intValue() == 0;
@@ -393,8 +737,8 @@ public class ConstantFolder {
 			else if (instruction instanceof  IFGT) return num.intValue() > 0;
 			else throw new IllegalArgumentException("Invalid instruction for comparison with zero");
 		} else {
-			Number first = constantStack.pop();
-			Number second = constantStack.pop();
+			Number second = (Number) constantStack.pop();
+			Number first = (Number) constantStack.pop();
 			deleteInstruction(il, pushAndLoadInstructions.pop());
 			deleteInstruction(il, pushAndLoadInstructions.pop());
 			if (instruction instanceof IF_ICMPLE) return first.intValue() <= second.intValue();
@@ -407,7 +751,7 @@ public class ConstantFolder {
 		}
 	}
 
-	private static Instruction generateNewLoadInstruction (Number value, ConstantPoolGen cpgen) {
+	private static Instruction generateNewLoadInstruction (Object value, ConstantPoolGen cpgen) {
 		// Generate the new load instruction based on the type of constant
 		Instruction newLoadInstruction;
 		int newConstantInPool;
@@ -436,14 +780,359 @@ public class ConstantFolder {
 			newConstantInPool = cpgen.addDouble(numDouble);
 			newLoadInstruction = new LDC2_W(newConstantInPool);
 		}
+		else if (value instanceof String) {
+			newConstantInPool = cpgen.addString((String) value);
+			newLoadInstruction = new LDC(newConstantInPool);
+		}
 		else throw new IllegalArgumentException("Invalid value to load");
 		return newLoadInstruction;
 	}
 
+	public void optimiseInvokeInstruction(InstructionList il, InstructionHandle handle, ConstantPoolGen cpgen) {
+		InvokeInstruction instruction = (InvokeInstruction) handle.getInstruction();
+		String className = getClassName(instruction, cpgen);
+		String methodName = instruction.getMethodName(cpgen);
+
+		if (className.equals("java.lang.StringBuilder") && methodName.equals("toString")) {
+			optimiseStringBuilderChain(il, handle, cpgen);
+		} else if (isPureMethod(className, methodName, instruction.getSignature(cpgen))) {
+			log("---Optimising Pure Method Invocation---");
+			int argumentCount = instruction.getArgumentTypes(cpgen).length + (instruction instanceof INVOKESTATIC ? 0 : 1);
+			replaceWithConstant(il, handle, argumentCount, cpgen, arguments -> invokePureMethod(methodName, arguments));
+		} else {
+			ifInLoop = false;
+		}
+	}
+
+	public void optimiseStringConcatInstruction(InstructionList il, InstructionHandle handle, ClassGen cgen, ConstantPoolGen cpgen) {
+		INVOKEDYNAMIC instruction = (INVOKEDYNAMIC) handle.getInstruction();
+		ConstantPool cp = cpgen.getConstantPool();
+		BootstrapMethod bootstrapMethod = findBootstrapMethod(cgen, instruction.getInvokeDynamic(cpgen).getBootstrapMethodAttrIndex());
+
+		if (bootstrapMethod == null || !isStringConcatFactory(bootstrapMethod, cp, "makeConcatWithConstants")) {
+			// Lambdas and other call sites cannot be folded
+			ifInLoop = false;
+			return;
+		}
+
+		log("---Optimising String Concatenation---");
+		int[] bootstrapArguments = bootstrapMethod.getBootstrapArguments();
+		String recipe = (String) ((ConstantObject) cp.getConstant(bootstrapArguments[0])).getConstantValue(cp);
+		Type[] argumentTypes = instruction.getArgumentTypes(cpgen);
+
+		replaceWithConstant(il, handle, argumentTypes.length, cpgen, arguments -> {
+			// \1 in the recipe takes the next argument from the stack, \2 the next constant from the bootstrap arguments
+			StringBuilder result = new StringBuilder();
+			int argument = 0;
+			int constant = 1;
+			for (char c : recipe.toCharArray()) {
+				if (c == '\u0001') {
+					result.append(toStringConstant(arguments[argument], argumentTypes[argument]));
+					argument++;
+				} else if (c == '\u0002') {
+					result.append(((ConstantObject) cp.getConstant(bootstrapArguments[constant++])).getConstantValue(cp));
+				} else {
+					result.append(c);
+				}
+			}
+			return result.toString();
+		});
+	}
+
+	private Method rewriteStringConcatInstructions(ClassGen cgen, ConstantPoolGen cpgen, Method method) {
+		// Unlike folding this keeps the exception handlers, only the stack map frames go as version 50 does not need them
+		MethodGen methodGen = new MethodGen(method, cgen.getClassName(), cpgen);
+		methodGen.removeCodeAttributes();
+		InstructionList il = methodGen.getInstructionList();
+		rewriteStringConcatInstructions(il, methodGen, cgen, cpgen);
+		// Other call sites are left for requiresModernClassFile to keep the class as it was
+		if (containsInvokeDynamic(il)) return method;
+
+		methodGen.setMaxStack();
+		methodGen.setMaxLocals();
+		Method rewritten = methodGen.getMethod();
+		cgen.replaceMethod(method, rewritten);
+		return rewritten;
+	}
+
+	/**
+	 * Turn the string concatenations that could not be folded back into the StringBuilder chains javac emits for class
+	 * files before version 53, so the class can still be written as version 50. The operands are already on the stack,
+	 * so they are stored into fresh locals and appended in recipe order.
+	 */
+	public void rewriteStringConcatInstructions(InstructionList il, MethodGen methodGen, ClassGen cgen, ConstantPoolGen cpgen) {
+		ConstantPool cp = cpgen.getConstantPool();
+		InstructionFactory factory = new InstructionFactory(cgen, cpgen);
+		for (InstructionHandle handle : il.getInstructionHandles()) {
+			if (!(handle.getInstruction() instanceof INVOKEDYNAMIC)) continue;
+			INVOKEDYNAMIC instruction = (INVOKEDYNAMIC) handle.getInstruction();
+			BootstrapMethod bootstrapMethod = findBootstrapMethod(cgen, instruction.getInvokeDynamic(cpgen).getBootstrapMethodAttrIndex());
+			// Lambdas and other call sites have no equivalent without invokedynamic
+			if (bootstrapMethod == null || !isStringConcatFactory(bootstrapMethod, cp, "makeConcatWithConstants")) continue;
+
+			log("---Rewriting String Concatenation---");
+			int[] bootstrapArguments = bootstrapMethod.getBootstrapArguments();
+			String recipe = (String) ((ConstantObject) cp.getConstant(bootstrapArguments[0])).getConstantValue(cp);
+			Type[] argumentTypes = instruction.getArgumentTypes(cpgen);
+
+			// Count the locals again, since an earlier call site in this method may have added some
+			methodGen.setMaxLocals();
+			int[] locals = new int[argumentTypes.length];
+			int nextLocal = methodGen.getMaxLocals();
+			for (int i = 0; i < argumentTypes.length; i++) {
+				locals[i] = nextLocal;
+				nextLocal += argumentTypes[i].getSize();
+			}
+
+			InstructionList chain = new InstructionList();
+			for (int i = argumentTypes.length - 1; i >= 0; i--) {
+				chain.append(InstructionFactory.createStore(argumentTypes[i], locals[i]));
+			}
+			chain.append(factory.createNew(STRING_BUILDER));
+			chain.append(new DUP());
+			chain.append(factory.createInvoke(STRING_BUILDER.getClassName(), "<init>", Type.VOID, Type.NO_ARGS, Constants.INVOKESPECIAL));
+			// \1 in the recipe takes the next argument from the stack, \2 the next constant from the bootstrap arguments
+			StringBuilder literal = new StringBuilder();
+			int argument = 0;
+			int constant = 1;
+			for (char c : recipe.toCharArray()) {
+				if (c == '\u0001') {
+					appendLiteral(chain, factory, cpgen, literal);
+					chain.append(InstructionFactory.createLoad(argumentTypes[argument], locals[argument]));
+					chain.append(createAppend(factory, argumentTypes[argument]));
+					argument++;
+				} else if (c == '\u0002') {
+					literal.append(((ConstantObject) cp.getConstant(bootstrapArguments[constant++])).getConstantValue(cp));
+				} else {
+					literal.append(c);
+				}
+			}
+			appendLiteral(chain, factory, cpgen, literal);
+
+			InstructionHandle first = il.insert(handle, chain);
+			handle.setInstruction(factory.createInvoke(STRING_BUILDER.getClassName(), "toString", Type.STRING, Type.NO_ARGS, Constants.INVOKEVIRTUAL));
+			// A jump to the call site, e.g. the join of a conditional operand, arrives with the operands still to store,
+			// and a handler or line starting at the call site covers the whole chain
+			for (InstructionTargeter targeter : handle.getTargeters()) {
+				if (targeter instanceof CodeExceptionGen) {
+					CodeExceptionGen exception = (CodeExceptionGen) targeter;
+					if (exception.getStartPC() == handle) exception.setStartPC(first);
+				} else if (!(targeter instanceof LocalVariableGen)) {
+					targeter.updateTarget(handle, first);
+				}
+			}
+		}
+	}
+
+	private static void appendLiteral(InstructionList chain, InstructionFactory factory, ConstantPoolGen cpgen, StringBuilder literal) {
+		if (literal.length() == 0) return;
+		chain.append(new PUSH(cpgen, literal.toString()));
+		chain.append(createAppend(factory, Type.STRING));
+		literal.setLength(0);
+	}
+
+	private static Instruction createAppend(InstructionFactory factory, Type type) {
+		// StringBuilder has no append for byte or short, and other references go through append(Object) like javac's
+		Type argumentType = type;
+		if (type.equals(Type.BYTE) || type.equals(Type.SHORT)) argumentType = Type.INT;
+		else if (type instanceof ReferenceType && !type.equals(Type.STRING)) argumentType = Type.OBJECT;
+		return factory.createInvoke(STRING_BUILDER.getClassName(), "append", STRING_BUILDER, new Type[] {argumentType}, Constants.INVOKEVIRTUAL);
+	}
+
+	public void optimiseStringBuilderChain(InstructionList il, InstructionHandle handle, ConstantPoolGen cpgen) {
+		// Match new StringBuilder; dup; [value] invokespecial <init>; (value; invokevirtual append)* ending at this toString,
+		// where each value is pushed by one tracked instruction, e.g. a constant or a load of a variable holding one
+		List<InstructionHandle> constants = new ArrayList<InstructionHandle>();
+		List<Type> types = new ArrayList<Type>();
+		InstructionHandle current = handle.getPrev();
+
+		while (current != null && current.getInstruction() instanceof INVOKEVIRTUAL
+				&& ((INVOKEVIRTUAL) current.getInstruction()).getMethodName(cpgen).equals("append")) {
+			Type[] argumentTypes = ((INVOKEVIRTUAL) current.getInstruction()).getArgumentTypes(cpgen);
+			InstructionHandle argument = current.getPrev();
+			if (argumentTypes.length != 1 || argument == null) {
+				ifInLoop = false;
+				return;
+			}
+			constants.add(0, argument);
+			types.add(0, argumentTypes[0]);
+			current = argument.getPrev();
+		}
+
+		if (current == null || !(current.getInstruction() instanceof INVOKESPECIAL)
+				|| !getClassName((INVOKESPECIAL) current.getInstruction(), cpgen).equals("java.lang.StringBuilder")) {
+			ifInLoop = false;
+			return;
+		}
+		Type[] initTypes = ((INVOKESPECIAL) current.getInstruction()).getArgumentTypes(cpgen);
+		if (initTypes.length == 1 && initTypes[0].equals(Type.STRING) && current.getPrev() != null) {
+			current = current.getPrev();
+			constants.add(0, current);
+			types.add(0, Type.STRING);
+		} else if (initTypes.length != 0) {
+			ifInLoop = false;
+			return;
+		}
+		InstructionHandle dup = current.getPrev();
+		InstructionHandle start = dup == null ? null : dup.getPrev();
+		if (start == null || !(dup.getInstruction() instanceof DUP) || !(start.getInstruction() instanceof NEW)
+				|| !((NEW) start.getInstruction()).getLoadClassType(cpgen).getClassName().equals("java.lang.StringBuilder")) {
+			ifInLoop = false;
+			return;
+		}
+
+		// A jump into the middle of the chain means it is not a straight line of values
+		for (InstructionHandle inner = start.getNext(); inner != handle; inner = inner.getNext()) {
+			if (inner.hasTargeters()) {
+				ifInLoop = false;
+				return;
+			}
+		}
+
+		// The values are the most recent entries on the stacks, in the same order as in the chain, and all known
+		int count = constants.size();
+		if (ifInLoop || pushAndLoadInstructions.size() < count
+				|| !pushAndLoadInstructions.subList(pushAndLoadInstructions.size() - count, pushAndLoadInstructions.size()).equals(constants)
+				|| constantStack.subList(constantStack.size() - count, constantStack.size()).contains(null)) {
+			return;
+		}
+
+		log("---Optimising StringBuilder Chain---");
+		StringBuilder result = new StringBuilder();
+		Object[] values = new Object[count];
+		for (int i = count - 1; i >= 0; i--) {
+			values[i] = constantStack.pop();
+			pushAndLoadInstructions.pop();
+		}
+		for (int i = 0; i < count; i++) {
+			result.append(toStringConstant(values[i], types.get(i)));
+		}
+
+		deleteMultipleInstructions(il, start, handle.getPrev());
+		constantStack.push(result.toString());
+		handle.setInstruction(generateNewLoadInstruction(result.toString(), cpgen));
+		pushAndLoadInstructions.push(handle);
+	}
+
+	private interface ConstantFunction {
+		Object apply(Object[] arguments);
+	}
+
+	private static String getClassName(InvokeInstruction instruction, ConstantPoolGen cpgen) {
+		// Calls on arrays, e.g. clone, have an array type instead of a class
+		ReferenceType type = instruction.getReferenceType(cpgen);
+		return type instanceof ObjectType ? ((ObjectType) type).getClassName() : type.toString();
+	}
+
+	private void replaceWithConstant(InstructionList il, InstructionHandle handle, int argumentCount, ConstantPoolGen cpgen, ConstantFunction function) {
+		// The arguments must be the most recent tracked values, pushed by the instructions right before the call
+		if (!hasOwnOperands(handle, argumentCount)) {
+			constantStack.push(null);
+			pushAndLoadInstructions.push(handle);
+			return;
+		}
+
+		// Pop the operands so the stacks stay in step with the bytecode even when the call cannot be folded
+		Object[] arguments = new Object[argumentCount];
+		InstructionHandle[] producers = new InstructionHandle[argumentCount];
+		boolean allConstant = !ifInLoop;
+		for (int i = argumentCount - 1; i >= 0; i--) {
+			arguments[i] = constantStack.pop();
+			producers[i] = pushAndLoadInstructions.pop();
+			allConstant = allConstant && arguments[i] != null;
+		}
+
+		Object result = null;
+		if (allConstant) {
+			try {
+				result = function.apply(arguments);
+			} catch (RuntimeException e) {
+				// e.g. Integer.parseInt of a String that is not a number, which has to fail at run time instead
+				result = null;
+			}
+		}
+
+		if (result == null) {
+			// Unknown result, later folding that consumes it will give up
+			constantStack.push(null);
+			pushAndLoadInstructions.push(handle);
+			return;
+		}
+
+		for (InstructionHandle producer : producers) {
+			deleteInstruction(il, producer);
+		}
+		constantStack.push(result);
+		handle.setInstruction(generateNewLoadInstruction(result, cpgen));
+		pushAndLoadInstructions.push(handle);
+	}
+
+	private static boolean isPureMethod(String className, String methodName, String signature) {
+		// JDK methods without side effects whose result only depends on constant arguments
+		if (className.equals("java.lang.Math")) {
+			return (methodName.equals("abs") || methodName.equals("min") || methodName.equals("max"))
+					&& !signature.contains("L");
+		}
+		if (className.equals("java.lang.String")) return methodName.equals("length") && signature.equals("()I");
+		if (className.equals("java.lang.Integer")) return methodName.equals("parseInt") && signature.equals("(Ljava/lang/String;)I");
+		return false;
+	}
+
+	private static Object invokePureMethod(String methodName, Object[] arguments) {
+		if (methodName.equals("length")) return ((String) arguments[0]).length();
+		if (methodName.equals("parseInt")) return Integer.parseInt((String) arguments[0]);
+
+		Number first = (Number) arguments[0];
+		if (methodName.equals("abs")) {
+			if (first instanceof Integer) return Math.abs(first.intValue());
+			else if (first instanceof Long) return Math.abs(first.longValue());
+			else if (first instanceof Float) return Math.abs(first.floatValue());
+			else return Math.abs(first.doubleValue());
+		}
+
+		Number second = (Number) arguments[1];
+		boolean max = methodName.equals("max");
+		if (first instanceof Integer) return max ? Math.max(first.intValue(), second.intValue()) : Math.min(first.intValue(), second.intValue());
+		else if (first instanceof Long) return max ? Math.max(first.longValue(), second.longValue()) : Math.min(first.longValue(), second.longValue());
+		else if (first instanceof Float) return max ? Math.max(first.floatValue(), second.floatValue()) : Math.min(first.floatValue(), second.floatValue());
+		else return max ? Math.max(first.doubleValue(), second.doubleValue()) : Math.min(first.doubleValue(), second.doubleValue());
+	}
+
+	private static String toStringConstant(Object value, Type type) {
+		// Ints on the stack stand for booleans and chars too, format them the way String.valueOf would
+		if (type == Type.BOOLEAN) return String.valueOf(((Number) value).intValue() != 0);
+		else if (type == Type.CHAR) return String.valueOf((char) ((Number) value).intValue());
+		else if (type == Type.BYTE || type == Type.SHORT || type == Type.INT) return String.valueOf(((Number) value).intValue());
+		else if (type == Type.LONG) return String.valueOf(((Number) value).longValue());
+		else if (type == Type.FLOAT) return String.valueOf(((Number) value).floatValue());
+		else if (type == Type.DOUBLE) return String.valueOf(((Number) value).doubleValue());
+		else if (value instanceof String) return (String) value;
+		else throw new IllegalArgumentException("Invalid constant for string conversion");
+	}
+
+	private static BootstrapMethod findBootstrapMethod(ClassGen cgen, int index) {
+		for (Attribute attribute : cgen.getAttributes()) {
+			if (attribute instanceof BootstrapMethods) return ((BootstrapMethods) attribute).getBootstrapMethods()[index];
+		}
+		return null;
+	}
+
+	private static boolean isStringConcatFactory(BootstrapMethod bootstrapMethod, ConstantPool cp, String name) {
+		ConstantMethodHandle methodHandle = (ConstantMethodHandle) cp.getConstant(bootstrapMethod.getBootstrapMethodRef());
+		ConstantCP methodRef = (ConstantCP) cp.getConstant(methodHandle.getReferenceIndex());
+		ConstantNameAndType nameAndType = (ConstantNameAndType) cp.getConstant(methodRef.getNameAndTypeIndex());
+		return methodRef.getClass(cp).equals("java.lang.invoke.StringConcatFactory") && nameAndType.getName(cp).equals(name);
+	}
+
+	private static boolean isDeleted(InstructionList il, InstructionHandle handle) {
+		// BCEL unlinks removed handles but keeps the instruction of those that were still targeted
+		return handle.getInstruction() == null || (handle.getPrev() == null && il.getStart() != handle);
+	}
+
 	public void deleteInstruction(InstructionList il, InstructionHandle handle) {
 		InstructionHandle next = handle.getNext();
 		try {
-			System.out.println("Deleting Instruction: " + handle.getInstruction());
+			log("Deleting Instruction: " + handle.getInstruction());
 			il.delete(handle);
 		} catch (TargetLostException e) {
 			// Handle goto referencing that involves the instruction
@@ -457,6 +1146,39 @@ public class ConstantFolder {
 		}
 	}
 
+	public void removeUnreachableInstructions(InstructionList il) {
+		InstructionHandle[] handles = il.getInstructionHandles();
+		for (InstructionHandle handle : handles) {
+			// A subroutine returns to the instruction after its jsr, which this walk does not follow
+			if (handle.getInstruction() instanceof JsrInstruction) return;
+		}
+
+		// Follow every path from the start of the method, the exception table is always empty here
+		HashSet<InstructionHandle> reachable = new HashSet<InstructionHandle>();
+		Stack<InstructionHandle> pending = new Stack<InstructionHandle>();
+		pending.push(il.getStart());
+		while (!pending.isEmpty()) {
+			InstructionHandle handle = pending.pop();
+			if (handle == null || !reachable.add(handle)) continue;
+			Instruction instruction = handle.getInstruction();
+			if (instruction instanceof BranchInstruction) pending.push(((BranchInstruction) instruction).getTarget());
+			if (instruction instanceof Select) pending.addAll(Arrays.asList(((Select) instruction).getTargets()));
+			boolean endsPath = instruction instanceof GotoInstruction || instruction instanceof Select
+					|| instruction instanceof ReturnInstruction || instruction instanceof ATHROW;
+			if (!endsPath) pending.push(handle.getNext());
+		}
+
+		for (int i = 0; i < handles.length; i++) {
+			if (reachable.contains(handles[i])) continue;
+			// Delete each run of dead instructions at once, so branches inside it do not hold on to its targets
+			int end = i;
+			while (end + 1 < handles.length && !reachable.contains(handles[end + 1])) end++;
+			log("Deleting unreachable instructions: " + handles[i] + " to " + handles[end]);
+			deleteMultipleInstructions(il, handles[i], handles[end]);
+			i = end;
+		}
+	}
+
 	public void deleteMultipleInstructions(InstructionList il, InstructionHandle handle, InstructionHandle target) {
 		try {
 			// Delete a list of instruction from handle to target
@@ -467,9 +1189,10 @@ public class ConstantFolder {
 	public void findLoopPositions(InstructionList instructionList) {
 		InstructionHandle[] handles = instructionList.getInstructionHandles();
 		for(InstructionHandle handle : handles) {
-			if(handle.getInstruction() instanceof GotoInstruction instruction) {
-				InstructionHandle target = instruction.getTarget();
-				// If goto is going to an instruction before itself, there is a loop
+			// javac ends while and for loops with a backward goto, and do-while loops or breaks out of for(;;) with a backward if
+			if(handle.getInstruction() instanceof GotoInstruction || handle.getInstruction() instanceof IfInstruction) {
+				InstructionHandle target = ((BranchInstruction) handle.getInstruction()).getTarget();
+				// If the jump is going to an instruction before itself, there is a loop
 				if(target.getPosition() < handle.getPosition()) {
 					// Add the start instruction of the loop
 					loopPositions.add(target);
@@ -480,40 +1203,177 @@ public class ConstantFolder {
 		}
 	}
 
-	public InstructionHandle findStartOfLoopForInstruction(InstructionHandle handle) {
+	public void forgetLoopVariables(InstructionHandle handle) {
+		for (int start = 0; start < loopPositions.size(); start += 2) {
+			InstructionHandle startInstruction = loopPositions.get(start);
+			InstructionHandle endInstruction = loopPositions.get(start + 1);
+			if (handle != startInstruction && handle != endInstruction) continue;
+
+			// The backward jump closes the loop, so everything stored up to it is a loop variable
+			for (InstructionHandle loopHandle = startInstruction; loopHandle != null; loopHandle = loopHandle.getNext()) {
+				Instruction instruction = loopHandle.getInstruction();
+				if (instruction instanceof StoreInstruction || instruction instanceof IINC) {
+					variableMap.remove(((LocalVariableInstruction) instruction).getIndex());
+				}
+				if (loopHandle == endInstruction) break;
+			}
+		}
+	}
+
+	public boolean isInLoop(InstructionHandle handle) {
 		int pos = handle.getPosition();
+		for (int start = 0; start < loopPositions.size(); start += 2) {
+			if (pos >= loopPositions.get(start).getPosition() && pos < loopPositions.get(start + 1).getPosition()) return true;
+		}
+		return false;
+	}
+
+	public boolean checkLoopVariable(InstructionHandle handle, int index) {
+		int pos = handle.getPosition();
+		// Check every loop around the instruction, a nested loop can read a variable that only the outer loop changes
 		for (int start = 0; start < loopPositions.size(); start += 2) { // Increment by 2 to get next pairing
 			InstructionHandle startInstruction = loopPositions.get(start);
 			InstructionHandle endInstruction = loopPositions.get(start + 1);
+			if (pos < startInstruction.getPosition() || pos >= endInstruction.getPosition()) continue;
+
+			InstructionHandle loopHandle = startInstruction;
+			while(loopHandle != null && loopHandle != endInstruction) { // the backwards goto is the end of the loop
+				Instruction instruction = loopHandle.getInstruction();
+				if(instruction instanceof StoreInstruction && ((StoreInstruction) instruction).getIndex() == index) {
+					return true; // Check if the variable of position (index) is being changed
+				} else if(instruction instanceof IINC && ((IINC) instruction).getIndex() == index) {
+					return true; // Check if the variable of position (index) is being changed
+				}
+				loopHandle = loopHandle.getNext();
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Whether optimize() rewrote any method, otherwise the optimised class only differs from the original in its version.
+	 */
+	public boolean isChanged() {
+		return changed;
+	}
 
-			if (pos >= startInstruction.getPosition() && pos < endInstruction.getPosition()) {
-				return startInstruction;
+	public List<MethodSizeChange> getMethodSizeChanges() {
+		return methodSizeChanges;
+	}
+
+	public boolean requiresModernClassFile() {
+		// Output is written as version 50, which ignores nestmate access and cannot carry invokedynamic call sites
+		for (Attribute attribute : optimized.getAttributes()) {
+			ConstantPool cp = attribute.getConstantPool();
+			String name = ((ConstantUtf8) cp.getConstant(attribute.getNameIndex(), Constants.CONSTANT_Utf8)).getBytes();
+			if (name.equals("NestHost") || name.equals("NestMembers")) return true;
+		}
+		if (optimized.isInterface()) {
+			// Default, static and private interface methods need version 52, only the static initialiser may have code before that
+			for (Method method : optimized.getMethods()) {
+				if (!method.isAbstract() && !method.getName().equals("<clinit>")) return true;
 			}
 		}
-		return null;
+		return containsInvokeDynamic(optimized.getMethods());
 	}
 
-	public boolean checkLoopVariable(InstructionHandle handle, int index) {
-		InstructionHandle loopHandle = findStartOfLoopForInstruction(handle);
+	/**
+	 * Whether the optimised class can be used in place of the original: it fits in a version 50 class file and passes BCEL's verifier.
+	 * The folding passes only model constant arithmetic, so code that mixes in references or calls can come out unbalanced.
+	 */
+	public boolean isUsable() {
+		try {
+			return !requiresModernClassFile() && verify(optimized);
+		} catch (RuntimeException e) {
+			// BCEL's verifier fails on some valid classes, e.g. Pass2 on annotation types with AnnotationDefault, treat that as a rejection
+			log("Verifier failed on " + optimized.getClassName() + ": " + e);
+			return false;
+		}
+	}
 
-		while(loopHandle != null && !(loopHandle.getInstruction() instanceof GotoInstruction)) { // goto means we are at end of the loop
-			Instruction instruction = loopHandle.getInstruction();
-			if(instruction instanceof StoreInstruction && ((StoreInstruction) instruction).getIndex() == index) {
-				return true; // Check if the variable of position (index) is being changed
-			} else if(instruction instanceof IINC && ((IINC) instruction).getIndex() == index) {
-				return true; // Check if the variable of position (index) is being changed
+	// Classes the verifier cannot resolve through the Repository are conservatively rejected
+	private static synchronized boolean verify(JavaClass optimised) {
+		Repository.addClass(optimised);
+		try {
+			Verifier verifier = VerifierFactory.getVerifier(optimised.getClassName());
+			if (verifier.doPass1().getStatus() != VerificationResult.VERIFIED_OK) return false;
+			if (verifier.doPass2().getStatus() != VerificationResult.VERIFIED_OK) return false;
+			for (int i = 0; i < optimised.getMethods().length; i++) {
+				if (verifier.doPass3a(i).getStatus() != VerificationResult.VERIFIED_OK) return false;
+				if (verifier.doPass3b(i).getStatus() != VerificationResult.VERIFIED_OK) return false;
 			}
-			loopHandle = loopHandle.getNext();
+			return true;
+		} finally {
+			Repository.removeClass(optimised);
+			clearVerifiers();
+		}
+	}
+
+	/**
+	 * VerifierFactory keeps a Verifier with all its pass results for every class it has seen, including the superclasses Pass2 checks,
+	 * and has no way to remove one. Empty its map after each check so verifying a long stream of classes holds no per-class state.
+	 */
+	private static void clearVerifiers() {
+		try {
+			if (verifiers == null) {
+				Field field = VerifierFactory.class.getDeclaredField("hashMap");
+				field.setAccessible(true);
+				verifiers = (Map<?, ?>) field.get(null);
+			}
+			verifiers.clear();
+		} catch (ReflectiveOperationException e) {
+			// Only the BCEL jar in lib/ is supported, which has this field
+			throw new IllegalStateException("Cannot release BCEL verifiers", e);
+		}
+	}
+
+	private static boolean containsInvokeDynamic(Method[] methods) {
+		for (Method method : methods) {
+			if (method.getCode() != null && containsInvokeDynamic(new InstructionList(method.getCode().getCode()))) return true;
 		}
 		return false;
 	}
 
+	private static boolean containsInvokeDynamic(InstructionList il) {
+		for (InstructionHandle handle : il.getInstructionHandles()) {
+			if (handle.getInstruction() instanceof INVOKEDYNAMIC) return true;
+		}
+		return false;
+	}
+
+	private static void removeInvokeDynamicConstants(ClassGen cgen, ConstantPoolGen cpgen) {
+		// Version 50 class files may not contain these constant tags, blank them out once every call site is folded
+		for (int i = 1; i < cpgen.getSize(); i++) {
+			Constant constant = cpgen.getConstant(i);
+			if (constant instanceof ConstantInvokeDynamic || constant instanceof ConstantMethodHandle || constant instanceof ConstantMethodType) {
+				cpgen.setConstant(i, new ConstantUtf8(""));
+			}
+		}
+		for (Attribute attribute : cgen.getAttributes()) {
+			if (attribute instanceof BootstrapMethods) cgen.removeAttribute(attribute);
+		}
+	}
+
+	public byte[] getOptimisedBytes() {
+		this.optimize();
+		return this.optimized.getBytes();
+	}
+
+	/**
+	 * Drop the BCEL object graphs once the optimised bytes have been taken, so batch runs only hold one class at a time.
+	 * Size changes stay available for the report.
+	 */
+	public void release() {
+		this.original = null;
+		this.optimized = null;
+	}
+
 	public void write(String optimisedFilePath) {
 		this.optimize();
 
-		try {
-			FileOutputStream out = new FileOutputStream(new File(optimisedFilePath));
+		try (FileOutputStream out = new FileOutputStream(new File(optimisedFilePath))) {
 			this.optimized.dump(out);
+			release();
 		} catch (FileNotFoundException e) {
 			// Auto-generated catch block
 			e.printStackTrace();
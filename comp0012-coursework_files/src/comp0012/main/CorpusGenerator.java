@@ -0,0 +1,194 @@
+package comp0012.main;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.generic.*;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * COMP0012 courswork 2
+ * Stress corpus generator: write synthetic classes shaped like the target classes but far larger, to see how the optimiser scales.
+ * Every method repeats three kinds of segment until it reaches the requested bytecode length or segment count:
+ * constant arithmetic stored into a local, nested counting loops (some ending in a do-while), and an if/else chain on a constant selector.
+ * Loop bodies read and update the accumulator, so every load in them makes the optimiser scan the enclosing loops.
+ */
+public class CorpusGenerator {
+
+    public static final int MAX_CODE_LENGTH = 65535; // Hard class file limit for a single method
+
+    @Option(name="-out", required=true, usage="Root directory where generated classfiles will be stored")
+    private String outputRoot;
+
+    @Option(name="-classes", usage="Number of classes to generate")
+    private int classes = 1;
+
+    @Option(name="-methods", usage="Number of methods per class")
+    private int methods = 10;
+
+    @Option(name="-length", usage="Approximate bytecode length of each method, at most 65535")
+    private int length = 1000;
+
+    @Option(name="-depth", usage="Nesting depth of the loops in each loop segment")
+    private int depth = 2;
+
+    @Option(name="-fanout", usage="Number of branches in each if/else chain segment")
+    private int fanOut = 4;
+
+    @Option(name="-body", usage="Number of statements in the innermost body of each loop segment")
+    private int loopBody = 1;
+
+    @Option(name="-segments", usage="Number of segments per method, 0 to fill up to -length")
+    private int segments = 0;
+
+    private void parseArguments(String args[]) {
+        CmdLineParser parser = new CmdLineParser(this);
+        parser.setUsageWidth(80);
+        try {
+            parser.parseArgument(args);
+            if (length > MAX_CODE_LENGTH) throw new CmdLineException(parser, "-length must be at most " + MAX_CODE_LENGTH);
+        } catch (CmdLineException e) {
+            System.err.println(e.getMessage());
+            System.err.println("java CorpusGenerator -out dir [-classes n] [-methods n] [-length bytes] [-segments n] [-depth n] [-fanout n] [-body n]");
+            parser.printUsage(System.err);
+            System.err.println();
+            System.exit(-1);
+        }
+    }
+
+    public static void main(String args[]) throws IOException {
+        CorpusGenerator generator = new CorpusGenerator();
+        generator.parseArguments(args);
+        File dir = new File(generator.outputRoot, "comp0012/corpus");
+        dir.mkdirs();
+        for (int i = 0; i < generator.classes; i++) {
+            JavaClass jc = generate("comp0012.corpus.Corpus" + i, generator.methods, generator.length, generator.segments,
+                    generator.depth, generator.fanOut, generator.loopBody);
+            jc.dump(new File(dir, "Corpus" + i + ".class"));
+        }
+        System.out.println("Generated " + generator.classes + " classes in " + dir);
+    }
+
+    /**
+     * Each method stops at whichever comes first of length bytes and segments segments (0 for no segment limit).
+     */
+    public static JavaClass generate(String className, int methods, int length, int segments, int depth, int fanOut, int loopBody) {
+        ClassGen cgen = new ClassGen(className, "java.lang.Object", className + ".java", Constants.ACC_PUBLIC | Constants.ACC_SUPER, null);
+        cgen.setMajor(50);
+        cgen.setMinor(0);
+        cgen.addEmptyConstructor(Constants.ACC_PUBLIC);
+        ConstantPoolGen cpgen = cgen.getConstantPool();
+
+        for (int m = 0; m < methods; m++) {
+            InstructionList il = new InstructionList();
+            MethodGen mg = new MethodGen(Constants.ACC_PUBLIC | Constants.ACC_STATIC, Type.INT, Type.NO_ARGS, null,
+                    "method" + m, className, il, cpgen);
+
+            // Local 0 accumulates results, then one local per loop level, then the chain selector
+            int seed = m;
+            int size = 0;
+            for (int count = 0; segments <= 0 || count < segments; count++) {
+                InstructionList segment = new InstructionList();
+                switch (seed % 3) {
+                    case 0: appendArithmetic(segment, cpgen, seed); break;
+                    case 1: appendLoops(segment, cpgen, seed, depth, loopBody); break;
+                    default: appendFanOut(segment, cpgen, seed, depth, fanOut); break;
+                }
+                int segmentSize = segment.getByteCode().length;
+                // Leave room for the final load and return
+                if (size > 0 && size + segmentSize + 2 > Math.min(length, MAX_CODE_LENGTH)) break;
+                il.append(segment);
+                size += segmentSize;
+                seed++;
+            }
+            il.append(InstructionFactory.createLoad(Type.INT, 0));
+            il.append(InstructionFactory.createReturn(Type.INT));
+
+            mg.setMaxStack();
+            mg.setMaxLocals();
+            cgen.addMethod(mg.getMethod());
+            il.dispose();
+        }
+        return cgen.getJavaClass();
+    }
+
+    private static void appendArithmetic(InstructionList il, ConstantPoolGen cpgen, int seed) {
+        // int acc = (a * b) + c;
+        il.append(new PUSH(cpgen, 100 + seed));
+        il.append(new PUSH(cpgen, 7 + seed % 50));
+        il.append(new IMUL());
+        il.append(new PUSH(cpgen, 40000 + seed));
+        il.append(new IADD());
+        il.append(InstructionFactory.createStore(Type.INT, 0));
+    }
+
+    private static void appendAccumulate(InstructionList il, ConstantPoolGen cpgen, int seed) {
+        // acc = acc * a + b;
+        il.append(InstructionFactory.createLoad(Type.INT, 0));
+        il.append(new PUSH(cpgen, 3 + seed % 5));
+        il.append(new IMUL());
+        il.append(new PUSH(cpgen, seed));
+        il.append(new IADD());
+        il.append(InstructionFactory.createStore(Type.INT, 0));
+    }
+
+    private static void appendLoops(InstructionList il, ConstantPoolGen cpgen, int seed, int depth, int loopBody) {
+        // for (int i = 0; i < 4; i++) { for (int j = 0; ...) { acc = ...; acc = acc * a + b; ... } }, laid out the way javac does.
+        // Every other segment makes the innermost loop do { ... } while (j < 4), which javac closes with a backward if instead
+        boolean doWhile = seed % 2 == 1;
+        BranchHandle[] exits = new BranchHandle[depth];
+        InstructionHandle[] conditions = new InstructionHandle[depth];
+        for (int level = 0; level < depth; level++) {
+            il.append(new PUSH(cpgen, 0));
+            il.append(InstructionFactory.createStore(Type.INT, 1 + level));
+            if (doWhile && level == depth - 1) {
+                conditions[level] = il.append(new NOP());
+                break;
+            }
+            conditions[level] = il.append(InstructionFactory.createLoad(Type.INT, 1 + level));
+            il.append(new PUSH(cpgen, 4));
+            exits[level] = il.append(new IF_ICMPGE(null));
+        }
+        appendArithmetic(il, cpgen, seed);
+        for (int statement = 1; statement < loopBody; statement++) {
+            appendAccumulate(il, cpgen, seed + statement);
+        }
+        for (int level = depth - 1; level >= 0; level--) {
+            il.append(new IINC(1 + level, 1));
+            if (doWhile && level == depth - 1) {
+                il.append(InstructionFactory.createLoad(Type.INT, 1 + level));
+                il.append(new PUSH(cpgen, 4));
+                il.append(new IF_ICMPLT(conditions[level]));
+                continue;
+            }
+            il.append(new GOTO(conditions[level]));
+            exits[level].setTarget(il.append(new NOP()));
+        }
+    }
+
+    private static void appendFanOut(InstructionList il, ConstantPoolGen cpgen, int seed, int depth, int fanOut) {
+        // int s = k; if (s == 0) {...} else if (s == 1) {...} ... with k known, so all but one branch is dead
+        int selector = 1 + depth;
+        il.append(new PUSH(cpgen, seed % Math.max(1, fanOut)));
+        il.append(InstructionFactory.createStore(Type.INT, selector));
+        BranchHandle[] ends = new BranchHandle[fanOut];
+        BranchHandle next = null;
+        for (int branch = 0; branch < fanOut; branch++) {
+            InstructionHandle start = il.append(InstructionFactory.createLoad(Type.INT, selector));
+            if (next != null) next.setTarget(start);
+            il.append(new PUSH(cpgen, branch));
+            next = il.append(new IF_ICMPNE(null));
+            appendArithmetic(il, cpgen, seed + branch);
+            ends[branch] = il.append(new GOTO(null));
+        }
+        InstructionHandle end = il.append(new NOP());
+        if (next != null) next.setTarget(end);
+        for (BranchHandle branchEnd : ends) {
+            branchEnd.setTarget(end);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package comp0012.main;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.File;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * COMP0012 courswork 2
+ * Java agent: apply the constant folding optimisation to classes as they are loaded, for jars that cannot be rebuilt.
+ *
+ * Usage: java -javaagent:build/folding-agent.jar=packages=com.foo:org.bar,cacheDir=/tmp/folded,cacheSize=4096,cacheDirSize=65536,stats ...
+ * Options are the same as the command line flags below, written as key=value and separated by commas.
+ */
+public class FoldingAgent implements ClassFileTransformer {
+
+    @Option(name="-packages", usage="Colon separated package prefixes to fold, e.g. com.foo:org.bar (default: every non-JDK class)")
+    private String packages = "";
+
+    @Option(name="-cacheSize", usage="Maximum number of folded classes kept in memory")
+    private int cacheSize = 1024;
+
+    @Option(name="-cacheDir", usage="Directory where folded classes are persisted across restarts")
+    private File cacheDir;
+
+    @Option(name="-cacheDirSize", usage="Maximum number of folded classes kept in cacheDir, the least recently used are deleted first")
+    private int cacheDirSize = FoldingCache.DEFAULT_MAX_DISK_ENTRIES;
+
+    @Option(name="-stats", usage="Print transform counts and time spent folding when the JVM exits")
+    private boolean stats;
+
+    private final List<String> prefixes = new ArrayList<String>();
+
+    private FoldingCache cache;
+
+    private final AtomicLong folded = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong unchanged = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+
+    public static void premain(String agentArgs, Instrumentation inst) {
+        FoldingAgent agent = new FoldingAgent();
+        agent.parseArguments(agentArgs);
+        inst.addTransformer(agent);
+    }
+
+    private void parseArguments(String agentArgs) {
+        // Turn "a=1,b" into "-a 1 -b" so the agent shares args4j handling with Main
+        List<String> args = new ArrayList<String>();
+        if (agentArgs != null) {
+            for (String arg : agentArgs.split(",")) {
+                if (arg.isEmpty()) continue;
+                int eq = arg.indexOf('=');
+                if (eq < 0) {
+                    args.add("-" + arg);
+                } else {
+                    args.add("-" + arg.substring(0, eq));
+                    args.add(arg.substring(eq + 1));
+                }
+            }
+        }
+
+        CmdLineParser parser = new CmdLineParser(this);
+        try {
+            parser.parseArgument(args.toArray(new String[0]));
+        } catch (CmdLineException e) {
+            System.err.println(e.getMessage());
+            System.err.println("-javaagent:folding-agent.jar=packages=com.foo:org.bar,cacheDir=dir,cacheSize=n,cacheDirSize=n,stats");
+            parser.printUsage(System.err);
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+
+        for (String pkg : packages.split(":")) {
+            if (!pkg.isEmpty()) prefixes.add(pkg.replace('.', '/') + "/");
+        }
+        cache = new FoldingCache(cacheSize, cacheDir, cacheDirSize);
+
+        if (stats) {
+            Runtime.getRuntime().addShutdownHook(new Thread(this::printStats));
+        }
+    }
+
+    private boolean shouldFold(String className) {
+        // Never fold the JDK or the optimiser itself, BCEL would end up transforming its own classes
+        if (className.startsWith("java/") || className.startsWith("javax/") || className.startsWith("jdk/")
+                || className.startsWith("sun/") || className.startsWith("com/sun/")
+                || className.startsWith("org/apache/bcel/") || className.startsWith("org/kohsuke/args4j/")
+                || className.startsWith("comp0012/main/")) {
+            return false;
+        }
+        if (prefixes.isEmpty()) return true;
+        for (String prefix : prefixes) {
+            if (className.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        // Hidden and lambda classes have no name, and redefinitions must keep the class shape
+        if (className == null || classBeingRedefined != null || !shouldFold(className)) return null;
+
+        long start = System.nanoTime();
+        try {
+            String key = FoldingCache.key(classfileBuffer);
+            byte[] result = cache.get(key);
+            if (result != null) {
+                cacheHits.incrementAndGet();
+            } else {
+                result = fold(key, className, classfileBuffer);
+            }
+            // Returning null tells the JVM to keep the original bytes
+            return result.length == 0 ? null : result;
+        } finally {
+            nanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private byte[] fold(String key, String className, byte[] classfileBuffer) {
+        // BCEL pools instruction handles in unsynchronised statics, so only one class is folded at a time,
+        // whichever loader thread asks for it
+        synchronized (FoldingAgent.class) {
+            // Another loader may have folded the same bytes while this thread waited
+            byte[] result = cache.get(key);
+            if (result != null) {
+                cacheHits.incrementAndGet();
+                return result;
+            }
+            result = foldClass(className, classfileBuffer);
+            cache.put(key, result);
+            return result;
+        }
+    }
+
+    private byte[] foldClass(String className, byte[] classfileBuffer) {
+        try {
+            ConstantFolder cf = new ConstantFolder(classfileBuffer, className + ".class");
+            cf.setVerbose(false);
+            // Wrong values from a loop would reach code nobody reviews, only straight-line methods are folded
+            cf.setFoldLoops(false);
+            byte[] optimised = cf.getOptimisedBytes();
+            // Nothing folded: keep the original class version and skip the verifier, which costs more than folding
+            boolean usable = cf.isChanged() && cf.isUsable();
+            cf.release();
+            if (usable) {
+                folded.incrementAndGet();
+                return optimised;
+            }
+        } catch (Throwable e) {
+            // A class BCEL cannot parse or rewrite is loaded unchanged, the agent must never break the application
+        }
+        unchanged.incrementAndGet();
+        return new byte[0];
+    }
+
+    private void printStats() {
+        System.err.printf("FoldingAgent: %d folded, %d unchanged, %d cache hits, %.1f ms spent in transform%n",
+                folded.get(), unchanged.get(), cacheHits.get(), nanos.get() / 1e6);
+    }
+}
@@ -0,0 +1,165 @@
+package comp0012.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of folded class files keyed by the SHA-256 of the optimiser version and the original bytes.
+ * Entries live in an LRU map and, when a directory is given, are also written to disk so a restarted JVM can skip re-folding.
+ * The directory is bounded too: once it holds more than its limit, the files read or written longest ago are deleted.
+ * A zero-length entry records a class that was left unchanged.
+ * Keys also cover the optimiser itself, so entries written by an older build are never loaded after an upgrade.
+ */
+public class FoldingCache {
+
+    // Hash of the folding code, any change to ConstantFolder gives every class a new key
+    public static final String OPTIMISER_VERSION = optimiserVersion();
+
+    public static final int DEFAULT_MAX_DISK_ENTRIES = 65536;
+
+    private final Map<String, byte[]> entries;
+
+    private final File directory;
+
+    private final int maxDiskEntries;
+
+    private int diskEntries; // Entry files in the directory, other JVMs sharing it make this an estimate between evictions
+
+    public FoldingCache(int maxEntries, File directory) {
+        this(maxEntries, directory, DEFAULT_MAX_DISK_ENTRIES);
+    }
+
+    public FoldingCache(final int maxEntries, File directory, int maxDiskEntries) {
+        this.entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.directory = directory;
+        this.maxDiskEntries = maxDiskEntries;
+        if (directory != null) {
+            directory.mkdirs();
+            diskEntries = listEntryFiles().length;
+        }
+    }
+
+    public static String key(byte[] classBytes) {
+        return key(classBytes, OPTIMISER_VERSION);
+    }
+
+    public static String key(byte[] classBytes, String optimiserVersion) {
+        MessageDigest digest = sha256();
+        digest.update(optimiserVersion.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        return hex(digest.digest(classBytes));
+    }
+
+    private static String optimiserVersion() {
+        try (InputStream in = ConstantFolder.class.getResourceAsStream("ConstantFolder.class")) {
+            if (in == null) return "unknown";
+            byte[] buffer = new byte[8192];
+            MessageDigest digest = sha256();
+            for (int read; (read = in.read(buffer)) > 0; ) {
+                digest.update(buffer, 0, read);
+            }
+            return hex(digest.digest());
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every JRE is required to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Look up a folded class, checking memory first and then disk.
+     * Returns null on a miss.
+     */
+    public synchronized byte[] get(String key) {
+        byte[] bytes = entries.get(key);
+        if (bytes != null || directory == null) return bytes;
+
+        Path file = entryFile(key);
+        if (!Files.isRegularFile(file)) return null;
+        try {
+            bytes = Files.readAllBytes(file);
+            // The modification time orders entries for eviction, so a read counts as a use
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            return null;
+        }
+        entries.put(key, bytes);
+        return bytes;
+    }
+
+    public synchronized void put(String key, byte[] bytes) {
+        entries.put(key, bytes);
+        if (directory == null) return;
+
+        // Write through a temporary file so a concurrent JVM never reads a half-written entry
+        Path file = entryFile(key);
+        try {
+            boolean added = !Files.exists(file);
+            Path tmp = Files.createTempFile(directory.toPath(), key, ".tmp");
+            Files.write(tmp, bytes);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (added) diskEntries++;
+        } catch (IOException e) {
+            // The disk copy is only an optimisation, the in-memory entry is still valid
+        }
+        if (diskEntries > maxDiskEntries) evictDiskEntries();
+    }
+
+    private void evictDiskEntries() {
+        // Every optimiser change gives every class a new key, so entries from older builds are only ever removed here.
+        // Evict a tenth below the limit, so the directory is not listed again on every put
+        File[] files = listEntryFiles();
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        int target = maxDiskEntries - maxDiskEntries / 10;
+        int remaining = files.length;
+        for (int i = 0; i < files.length && remaining > target; i++) {
+            if (files[i].delete()) remaining--;
+        }
+        diskEntries = remaining;
+    }
+
+    private File[] listEntryFiles() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".class"));
+        return files == null ? new File[0] : files;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private Path entryFile(String key) {
+        return new File(directory, key + ".class").toPath();
+    }
+}
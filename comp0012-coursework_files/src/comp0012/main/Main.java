@@ -1,5 +1,8 @@
 package comp0012.main;
 
+import org.apache.bcel.Repository;
+import org.apache.bcel.util.ClassPath;
+import org.apache.bcel.util.SyntheticRepository;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
@@ -8,6 +11,13 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * COMP0012 courswork 2
@@ -22,6 +32,26 @@ public class Main extends SimpleFileVisitor<Path> {
     @Option(name="-out",required=true, usage="Root directory where optimised classfiles will be stored")
     private String outputRoot;
 
+    @Option(name="-sizeReport", usage="Print per-method bytecode sizes against the JIT inlining thresholds")
+    private boolean sizeReport;
+
+    @Option(name="-batch", usage="Read, fold and write in a pipeline bounded by -heapBudget, for corpora too large to print or hold at once")
+    private boolean batch;
+
+    @Option(name="-heapBudget", usage="Megabytes of heap that classes in flight may use in batch mode (default: half the maximum heap)")
+    private long heapBudgetMb = Runtime.getRuntime().maxMemory() / (2 * 1024 * 1024);
+
+    // Live BCEL objects per class file byte while folding: about 10 on the stress corpus, and about 20 more while the verifier
+    // checks a folded class (a 1.8 MB corpus class folds in -Xmx8m but needs -Xmx40m to verify), plus room for the optimised copy
+    private static final int FOOTPRINT_FACTOR = 32;
+
+    private final List<MethodSizeChange> methodSizeChanges = new ArrayList<MethodSizeChange>();
+
+    private Semaphore heapBudget; // Permits are kilobytes of estimated heap
+    private int heapBudgetKb;
+    private ExecutorService folder;
+    private ExecutorService writer;
+
     private void parseArguments(String args[])
     {
         CmdLineParser parser = new CmdLineParser(this);
@@ -41,7 +71,117 @@ public class Main extends SimpleFileVisitor<Path> {
 	System.out.println("Running COMP207p courswork-2");
         Main main = new Main();
         main.parseArguments(args);
+        if (main.batch) main.startBatch();
         Files.walkFileTree(Paths.get(main.inputRoot), main);
+        if (main.batch) main.finishBatch();
+        if (main.sizeReport) main.printSizeReport();
+    }
+
+    private void startBatch() {
+        heapBudgetKb = (int) Math.min(Integer.MAX_VALUE, Math.max(1, heapBudgetMb) * 1024);
+        heapBudget = new Semaphore(heapBudgetKb);
+        // BCEL pools instruction handles in unsynchronised statics, so folding stays on one thread;
+        // reading runs ahead on the walking thread and writing overlaps on another
+        folder = Executors.newSingleThreadExecutor();
+        writer = Executors.newSingleThreadExecutor();
+        // The verifier resolves the classes a folded class refers to, which in a corpus are mostly its neighbours
+        Repository.setRepository(SyntheticRepository.getInstance(new ClassPath(inputRoot + File.pathSeparator + ClassPath.getClassPath())));
+    }
+
+    private void finishBatch() throws IOException {
+        try {
+            folder.shutdown();
+            folder.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            writer.shutdown();
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the batch to finish", e);
+        }
+    }
+
+    private static int kilobytes(long bytes) {
+        return (int) Math.min(Integer.MAX_VALUE, (bytes + 1023) / 1024);
+    }
+
+    private void submitBatch(Path file, Path outputFile) throws IOException {
+        // Reserve from the file size before reading, a class bigger than the whole budget still goes through on its own
+        int permits = Math.min(heapBudgetKb, kilobytes(Files.size(file) * FOOTPRINT_FACTOR));
+        // Backpressure: stop walking until earlier classes have been written and given their heap back
+        heapBudget.acquireUninterruptibly(permits);
+        byte[] input;
+        try {
+            input = Files.readAllBytes(file);
+        } catch (IOException | RuntimeException | Error e) {
+            heapBudget.release(permits);
+            throw e;
+        }
+
+        folder.execute(() -> {
+            // Whatever happens, e.g. an OutOfMemoryError in a small heap, the permits go back or the walk blocks forever
+            int released = 0;
+            try {
+                byte[] output = foldOrKeep(file, input);
+
+                // The BCEL graph is gone, only the output bytes stay in flight until they are written
+                int kept = Math.min(permits, kilobytes(output.length));
+                heapBudget.release(permits - kept);
+                released = permits - kept;
+                writer.execute(() -> {
+                    try {
+                        Files.write(outputFile, output);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    } finally {
+                        heapBudget.release(kept);
+                    }
+                });
+                released = permits;
+            } catch (RuntimeException | Error e) {
+                System.err.println("Failed to write " + file);
+                e.printStackTrace();
+            } finally {
+                heapBudget.release(permits - released);
+            }
+        });
+    }
+
+    /**
+     * Fold one class, or hand back the input bytes when that fails or the result would not load, as the agent does.
+     * Nothing checks a corpus this large by hand, so a class must never be dropped or written broken.
+     */
+    private byte[] foldOrKeep(Path file, byte[] input) {
+        try {
+            ConstantFolder cf = new ConstantFolder(input, file.getFileName().toString());
+            cf.setVerbose(false);
+            // Wrong values from a loop would reach code nobody reviews, only straight-line methods are folded
+            cf.setFoldLoops(false);
+            byte[] optimised = cf.getOptimisedBytes();
+            // A class nothing was folded in is written as it came, without paying for the verifier
+            boolean usable = cf.isChanged() && cf.isUsable();
+            if (usable && sizeReport) methodSizeChanges.addAll(cf.getMethodSizeChanges());
+            cf.release();
+            if (usable) return optimised;
+        } catch (IOException | RuntimeException | Error e) {
+            System.err.println("Failed to optimise " + file + ", writing it unchanged");
+            e.printStackTrace();
+        }
+        return input;
+    }
+
+    private void printSizeReport() {
+        // Methods that now fit under an inlining threshold come first, then the ones just above one
+        Collections.sort(methodSizeChanges);
+        System.out.println("---METHOD SIZES (MaxInlineSize " + MethodSizeChange.MAX_INLINE_SIZE + ", FreqInlineSize "
+                + MethodSizeChange.FREQ_INLINE_SIZE + ", HugeMethodLimit " + MethodSizeChange.HUGE_METHOD_LIMIT + ")---");
+        int before = 0;
+        int after = 0;
+        for (MethodSizeChange change : methodSizeChanges) {
+            System.out.println(change);
+            before += change.getBefore();
+            after += change.getAfter();
+        }
+        System.out.println("Total: " + before + " -> " + after + " bytes");
     }
 
     @Override
@@ -55,10 +195,17 @@ public class Main extends SimpleFileVisitor<Path> {
     @Override
     public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
         String fname = file.toString();
-        if(fname.endsWith(".class") && !fname.endsWith("Main.class") && !fname.endsWith("ConstantFolder.class")){
-            ConstantFolder cf = new ConstantFolder(file.toString());
-            Path rel = Paths.get(inputRoot).relativize(file);
-            cf.write(Paths.get(outputRoot, rel.toString()).toAbsolutePath().toString());
+        Path rel = Paths.get(inputRoot).relativize(file);
+        // Skip the optimiser's own classes (Main, ConstantFolder, FoldingAgent, ...)
+        if(fname.endsWith(".class") && !rel.startsWith(Paths.get("comp0012", "main"))){
+            Path outputFile = Paths.get(outputRoot, rel.toString()).toAbsolutePath();
+            if (batch) {
+                submitBatch(file, outputFile);
+            } else {
+                ConstantFolder cf = new ConstantFolder(file.toString());
+                cf.write(outputFile.toString());
+                if (sizeReport) methodSizeChanges.addAll(cf.getMethodSizeChanges());
+            }
         }
         return super.visitFile(file, attrs);
     }
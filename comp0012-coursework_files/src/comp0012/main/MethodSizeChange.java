@@ -0,0 +1,85 @@
+package comp0012.main;
+
+/**
+ * Bytecode size of one method before and after folding, checked against the HotSpot JIT size limits.
+ * Getting a method under an inlining limit is usually worth more at run time than the folding itself.
+ */
+public class MethodSizeChange implements Comparable<MethodSizeChange> {
+
+    public static final int MAX_INLINE_SIZE = 35; // -XX:MaxInlineSize, inlined even when called rarely
+    public static final int FREQ_INLINE_SIZE = 325; // -XX:FreqInlineSize, inlined when called from hot code
+    public static final int HUGE_METHOD_LIMIT = 8000; // HugeMethodLimit, not compiled at all above this by default
+
+    private static final int[] THRESHOLDS = {MAX_INLINE_SIZE, FREQ_INLINE_SIZE, HUGE_METHOD_LIMIT};
+
+    private static final double NEAR_MARGIN = 0.1; // "just above" means within 10% of a threshold
+
+    private final String className;
+    private final String method;
+    private final int before;
+    private final int after;
+
+    public MethodSizeChange(String className, String method, int before, int after) {
+        this.className = className;
+        this.method = method;
+        this.before = before;
+        this.after = after;
+    }
+
+    public String getMethod() {
+        return className + "." + method;
+    }
+
+    public int getBefore() {
+        return before;
+    }
+
+    public int getAfter() {
+        return after;
+    }
+
+    /**
+     * The smallest threshold this method was above before folding and is within afterwards, or 0 if none was crossed.
+     */
+    public int getCrossedThreshold() {
+        for (int threshold : THRESHOLDS) {
+            if (before > threshold && after <= threshold) return threshold;
+        }
+        return 0;
+    }
+
+    /**
+     * The threshold this method still sits just above after folding, or 0 if it is not close to any.
+     */
+    public int getNearThreshold() {
+        for (int threshold : THRESHOLDS) {
+            if (after > threshold && after <= threshold + Math.max(1, (int) (threshold * NEAR_MARGIN))) return threshold;
+        }
+        return 0;
+    }
+
+    /**
+     * Rank crossings first (lowest threshold first, as those inline most often), then near misses, then by bytes saved.
+     */
+    @Override
+    public int compareTo(MethodSizeChange other) {
+        int crossed = rank(getCrossedThreshold()) - rank(other.getCrossedThreshold());
+        if (crossed != 0) return crossed;
+        int near = rank(getNearThreshold()) - rank(other.getNearThreshold());
+        if (near != 0) return near;
+        return (other.before - other.after) - (before - after);
+    }
+
+    private static int rank(int threshold) {
+        return threshold == 0 ? Integer.MAX_VALUE / 2 : threshold;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder line = new StringBuilder();
+        line.append(getMethod()).append(": ").append(before).append(" -> ").append(after).append(" bytes");
+        if (getCrossedThreshold() != 0) line.append(" [now under ").append(getCrossedThreshold()).append("]");
+        if (getNearThreshold() != 0) line.append(" [just above ").append(getNearThreshold()).append("]");
+        return line.toString();
+    }
+}
@@ -0,0 +1,157 @@
+package comp0012.main;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * COMP0012 courswork 2
+ * Scaling benchmark: fold generated classes of growing size and record optimise time and allocation as CSV for plotting.
+ * Each sweep grows one dimension of the corpus while the others stay at their defaults, so superlinear growth
+ * points at the pass that depends on it (method length: findVariableRefCounts, loop depth and body: checkLoopVariable, ...).
+ * The length and methods sweeps fill methods up to a byte length; the structural sweeps give every method the same
+ * number of segments instead, so their input grows with the swept value. Each sweep ends with one least-squares
+ * fit of log time against log input size, printed to stderr; single timings are too noisy for a slope between neighbours.
+ * Every sweep starts where optimising takes tens of milliseconds, well above timer and JIT jitter.
+ */
+public class ScalingBenchmark {
+
+    @Option(name="-csv", usage="File to write the CSV results to (default: stdout)")
+    private String csvFile;
+
+    @Option(name="-runs", usage="Timed runs per point, the fastest is reported")
+    private int runs = 3;
+
+    @Option(name="-max", usage="Largest method length to try in the length sweep, at most 65535")
+    private int maxLength = 64000;
+
+    private static final int METHODS = 10;
+    private static final int LENGTH = 2000;
+    private static final int DEPTH = 2;
+    private static final int FAN_OUT = 4;
+    private static final int LOOP_BODY = 1;
+    private static final int SEGMENTS = 120; // Per method in the structural sweeps, enough to time the smallest point
+
+    private PrintStream csv = System.out;
+
+    private void parseArguments(String args[]) {
+        CmdLineParser parser = new CmdLineParser(this);
+        parser.setUsageWidth(80);
+        try {
+            parser.parseArgument(args);
+            if (csvFile != null) csv = new PrintStream(csvFile);
+        } catch (CmdLineException | FileNotFoundException e) {
+            System.err.println(e.getMessage());
+            System.err.println("java ScalingBenchmark [-csv file] [-runs n] [-max bytes]");
+            parser.printUsage(System.err);
+            System.err.println();
+            System.exit(-1);
+        }
+    }
+
+    public static void main(String args[]) {
+        ScalingBenchmark benchmark = new ScalingBenchmark();
+        benchmark.parseArguments(args);
+        benchmark.csv.println("sweep,value,input_bytes,optimise_ms,allocated_mb");
+
+        // Warm up the JIT on a mid-sized class so the first points are not dominated by interpretation
+        for (int i = 0; i < 5; i++) benchmark.measure(METHODS, LENGTH, 0, DEPTH, FAN_OUT, LOOP_BODY);
+
+        int maxLength = Math.min(benchmark.maxLength, CorpusGenerator.MAX_CODE_LENGTH);
+        benchmark.sweep("length", new int[] {2000, 4000, 8000, 16000, 32000, maxLength});
+        benchmark.sweep("methods", new int[] {32, 64, 128, 256, 512});
+        benchmark.sweep("depth", new int[] {2, 4, 8, 16, 32});
+        benchmark.sweep("fanout", new int[] {2, 4, 8, 16, 32, 64});
+        benchmark.sweep("body", new int[] {2, 4, 8, 16, 32, 64, 128});
+        benchmark.csv.flush();
+    }
+
+    private void sweep(String name, int[] values) {
+        List<double[]> points = new ArrayList<double[]>();
+        double previousBytes = 0;
+        int max = CorpusGenerator.MAX_CODE_LENGTH;
+        for (int value : values) {
+            double[] result;
+            if (name.equals("length")) result = measure(METHODS, value, 0, DEPTH, FAN_OUT, LOOP_BODY);
+            else if (name.equals("methods")) result = measure(value, LENGTH, 0, DEPTH, FAN_OUT, LOOP_BODY);
+            else if (name.equals("depth")) result = measure(METHODS, max, SEGMENTS, value, FAN_OUT, LOOP_BODY);
+            else if (name.equals("fanout")) result = measure(METHODS, max, SEGMENTS, DEPTH, value, LOOP_BODY);
+            else result = measure(METHODS, max, SEGMENTS, DEPTH, FAN_OUT, value);
+
+            csv.println(String.format("%s,%d,%d,%.3f,%.2f", name, value, (int) result[0], result[1], result[2]));
+            // Points where the input did not grow, e.g. once methods hit the class file limit, say nothing about scaling
+            if (result[0] > previousBytes) points.add(result);
+            previousBytes = result[0];
+        }
+        System.err.println(fitExponent(name, points));
+    }
+
+    /**
+     * Least-squares line through log(time) against log(input size): the slope is 1 for linear growth, 2 for quadratic.
+     * R^2 tells how well one power law describes the whole sweep.
+     */
+    private static String fitExponent(String name, List<double[]> points) {
+        int n = points.size();
+        if (n < 2) return name + ": too few points to fit";
+        double sumX = 0, sumY = 0, sumXX = 0, sumXY = 0, sumYY = 0;
+        for (double[] point : points) {
+            double x = Math.log(point[0]);
+            double y = Math.log(point[1]);
+            sumX += x;
+            sumY += y;
+            sumXX += x * x;
+            sumXY += x * y;
+            sumYY += y * y;
+        }
+        double sxx = sumXX - sumX * sumX / n;
+        double sxy = sumXY - sumX * sumY / n;
+        double syy = sumYY - sumY * sumY / n;
+        double slope = sxy / sxx;
+        double rSquared = syy == 0 ? 1 : sxy * sxy / (sxx * syy);
+        return String.format("%s: optimise time ~ input^%.2f (R^2 %.3f over %d points)", name, slope, rSquared, n);
+    }
+
+    /**
+     * Returns {input size in bytes, fastest optimise time in ms, bytes allocated by that run in MB}.
+     */
+    private double[] measure(int methods, int length, int segments, int depth, int fanOut, int loopBody) {
+        byte[] input = CorpusGenerator.generate("comp0012.corpus.Scaling", methods, length, segments, depth, fanOut, loopBody).getBytes();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        double bestMillis = Double.MAX_VALUE;
+        double allocated = 0;
+        for (int run = 0; run < runs; run++) {
+            long allocatedBefore = allocatedBytes(threads);
+            long start = System.nanoTime();
+            try {
+                ConstantFolder cf = new ConstantFolder(input, "Scaling.class");
+                cf.setVerbose(false);
+                cf.getOptimisedBytes();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            double millis = (System.nanoTime() - start) / 1e6;
+            if (millis < bestMillis) {
+                bestMillis = millis;
+                allocated = (allocatedBytes(threads) - allocatedBefore) / (1024.0 * 1024.0);
+            }
+        }
+        return new double[] {input.length, bestMillis, allocated};
+    }
+
+    private static long allocatedBytes(ThreadMXBean threads) {
+        // HotSpot exposes per-thread allocation counters, which are far steadier than sampling the heap
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
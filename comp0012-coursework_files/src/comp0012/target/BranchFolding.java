@@ -0,0 +1,79 @@
+package comp0012.target;
+
+public class BranchFolding
+{
+    public int methodOne(){
+        int a = 5;
+        int b = 5;
+        if (a == b) {
+            return 1;
+        }
+        return 2;
+    }
+
+    public int methodTwo(){
+        int x = 3;
+        int r;
+        if (x > 0) {
+            r = 10;
+        } else {
+            r = 20;
+        }
+        return r;
+    }
+
+    public int methodThree(){
+        long a = 7L;
+        long b = 7L;
+        if (a >= b) {
+            return 1;
+        }
+        return 0;
+    }
+
+    public int methodFour(){
+        int total = 0;
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 4; j++) {
+                total = total + 1;
+            }
+        }
+        return total;
+    }
+
+    public int methodFive(){
+        int i = 0;
+        do {
+            i++;
+        } while (i < 3);
+        return i;
+    }
+
+    public int methodSix(){
+        int s = 0;
+        for (;;) {
+            s = s + 1;
+            if (s > 3) break;
+        }
+        return s;
+    }
+
+    public int methodSeven(int n){
+        int x = 1;
+        for (int i = 0; i < n; i++) {
+            x = 5;
+        }
+        return x + 1;
+    }
+
+    public int methodEight(int n){
+        int x = 1;
+        int i = 0;
+        while (i < n) {
+            x = 5;
+            i++;
+        }
+        return x * 3;
+    }
+
+}
@@ -0,0 +1,42 @@
+package comp0012.target;
+
+public class StringFolding
+{
+    public String methodOne(){
+        return new StringBuilder().append("key-").append(42).append('/').append(true).toString();
+    }
+
+    public String methodTwo(){
+        String prefix = "user";
+        int id = 7;
+        return prefix + ":" + id;
+    }
+
+    public int methodThree(){
+        return "hello".length() + Math.max(3, 9);
+    }
+
+    public int methodFour(){
+        return Integer.parseInt("1234") + Math.abs(-66);
+    }
+
+    public double methodFive(){
+        return Math.min(2.5, 1.25) + 1;
+    }
+
+    public String methodSix(){
+        String prefix = "user";
+        int id = 7;
+        return new StringBuilder().append(prefix).append(":").append(id).toString();
+    }
+
+    public String methodSeven(int n){
+        return "n=" + n;
+    }
+
+    public String methodEight(long l, char c, boolean b, double d, Object o, String s){
+        String tag = "t";
+        return tag + l + "," + c + "," + b + "," + d + "," + o + "," + s + (b ? 1 : 2);
+    }
+
+}
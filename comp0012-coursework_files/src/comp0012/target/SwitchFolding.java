@@ -0,0 +1,99 @@
+package comp0012.target;
+
+public class SwitchFolding
+{
+    public int methodOne(){
+        int mode = 2;
+        int r;
+        switch (mode) {
+            case 1: r = 10; break;
+            case 2: r = 20; break;
+            case 3: r = 30; break;
+            default: r = 0;
+        }
+        return r;
+    }
+
+    public int methodTwo(){
+        int code = 1000;
+        int total = 0;
+        switch (code) {
+            case 10: total = total + 1;
+            case 1000: total = total + 2;
+            case 100000: total = total + 3; break;
+            default: total = 99;
+        }
+        return total;
+    }
+
+    public int methodThree(){
+        int k = 7;
+        switch (k) {
+            case 1: return 1;
+            case 2: return 2;
+            default: return -1;
+        }
+    }
+
+    public int methodFour(int x){
+        switch (x & 3) {
+            case 0: return 10;
+            case 1: return 11;
+            case 2: return 12;
+            case 3: return 13;
+            default: return -1;
+        }
+    }
+
+    public int methodFive(int x){
+        switch (x & 7) {
+            case 0: return 1;
+            case 5: return 2;
+            case 12: return 3;
+            default: return 0;
+        }
+    }
+
+    public int methodSix(int x){
+        int r = 0;
+        switch (x) {
+            case 1: r = 5; break;
+            default: r = 7;
+        }
+        return r + 1;
+    }
+
+    public int methodSeven(int x){
+        int k = 0;
+        k++;
+        int m = k + x;
+        switch (k) {
+            case 0: return 10 + m;
+            case 1: return 11 + m;
+            default: return -1;
+        }
+    }
+
+    public int methodEight(int p){
+        int x = 5;
+        int y = x * p;
+        x = 7;
+        switch (x) {
+            case 7: return y;
+            default: return -1;
+        }
+    }
+
+    public int methodNine(int n){
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            k = 1;
+        }
+        switch (k) {
+            case 0: return 10;
+            case 1: return 11;
+            default: return -1;
+        }
+    }
+
+}
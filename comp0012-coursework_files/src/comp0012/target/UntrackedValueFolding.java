@@ -0,0 +1,35 @@
+package comp0012.target;
+
+public class UntrackedValueFolding
+{
+    static int count;
+
+    static void sink(int v){
+    }
+
+    static int get(){
+        return 4;
+    }
+
+    public int methodOne(){
+        sink(7);
+        return get() + 1;
+    }
+
+    public int methodTwo(){
+        count = 3;
+        return count + 2;
+    }
+
+    public long methodThree(){
+        sink(5);
+        return (long) get();
+    }
+
+    public int methodFour(){
+        sink(7);
+        int a = 3;
+        return a * 4 + get();
+    }
+
+}
@@ -0,0 +1,96 @@
+package comp0012.main;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Test the agent's cache of folded classes
+ */
+public class FoldingCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testEvictsLeastRecentlyUsed(){
+        FoldingCache cache = new FoldingCache(2, null);
+        cache.put("a", new byte[] {1});
+        cache.put("b", new byte[] {2});
+        cache.get("a");
+        cache.put("c", new byte[] {3});
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get("b"));
+        assertArrayEquals(new byte[] {1}, cache.get("a"));
+        assertArrayEquals(new byte[] {3}, cache.get("c"));
+    }
+
+    @Test
+    public void testDiskRoundTrip(){
+        File dir = folder.getRoot();
+        new FoldingCache(1, dir).put("a", new byte[] {1, 2, 3});
+
+        FoldingCache restarted = new FoldingCache(1, dir);
+        assertArrayEquals(new byte[] {1, 2, 3}, restarted.get("a"));
+        assertNull(restarted.get("b"));
+    }
+
+    @Test
+    public void testDiskOutlivesEviction(){
+        FoldingCache cache = new FoldingCache(1, folder.getRoot());
+        cache.put("a", new byte[] {1});
+        cache.put("b", new byte[] {2});
+
+        assertArrayEquals(new byte[] {1}, cache.get("a"));
+    }
+
+    @Test
+    public void testDiskEvictsLeastRecentlyUsed(){
+        File dir = folder.getRoot();
+        FoldingCache cache = new FoldingCache(1, dir, 2);
+        cache.put("a", new byte[] {1});
+        cache.put("b", new byte[] {2});
+        new File(dir, "a.class").setLastModified(1000);
+        new File(dir, "b.class").setLastModified(2000);
+
+        // Reading a from disk makes it the most recently used, so b is the one to go
+        FoldingCache restarted = new FoldingCache(1, dir, 2);
+        restarted.get("a");
+        restarted.put("c", new byte[] {3});
+
+        FoldingCache fresh = new FoldingCache(1, dir, 2);
+        assertArrayEquals(new byte[] {1}, fresh.get("a"));
+        assertNull(fresh.get("b"));
+        assertArrayEquals(new byte[] {3}, fresh.get("c"));
+    }
+
+    @Test
+    public void testUnchangedEntry(){
+        File dir = folder.getRoot();
+        new FoldingCache(1, dir).put("a", new byte[0]);
+
+        // Zero length means "keep the original bytes", which is still a hit and not a miss
+        byte[] entry = new FoldingCache(1, dir).get("a");
+        assertNotNull(entry);
+        assertEquals(0, entry.length);
+    }
+
+    @Test
+    public void testKeyCoversOptimiserVersion(){
+        byte[] classBytes = {(byte) 0xca, (byte) 0xfe, (byte) 0xba, (byte) 0xbe};
+
+        assertEquals(FoldingCache.key(classBytes), FoldingCache.key(classBytes.clone()));
+        assertNotEquals(FoldingCache.key(classBytes, "1"), FoldingCache.key(classBytes, "2"));
+        assertNotEquals(FoldingCache.key(classBytes), FoldingCache.key(new byte[] {0}));
+    }
+
+}
@@ -0,0 +1,83 @@
+package comp0012.main;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test the method size report against the JIT inlining thresholds
+ */
+public class MethodSizeChangeTest {
+
+    private static MethodSizeChange change(String method, int before, int after) {
+        return new MethodSizeChange("Test", method, before, after);
+    }
+
+    @Test
+    public void testCrossedThreshold(){
+        assertEquals(35, change("m", 36, 35).getCrossedThreshold());
+        assertEquals(0, change("m", 36, 36).getCrossedThreshold());
+        assertEquals(0, change("m", 35, 30).getCrossedThreshold());
+        assertEquals(325, change("m", 326, 325).getCrossedThreshold());
+        assertEquals(0, change("m", 326, 326).getCrossedThreshold());
+        assertEquals(8000, change("m", 8001, 8000).getCrossedThreshold());
+        assertEquals(0, change("m", 8001, 8001).getCrossedThreshold());
+    }
+
+    @Test
+    public void testCrossedThresholdIsTheSmallest(){
+        // Going from above FreqInlineSize to under MaxInlineSize reports the limit that inlines most often
+        assertEquals(35, change("m", 400, 30).getCrossedThreshold());
+        assertEquals(325, change("m", 9000, 300).getCrossedThreshold());
+    }
+
+    @Test
+    public void testNearThreshold(){
+        assertEquals(0, change("m", 40, 35).getNearThreshold());
+        assertEquals(35, change("m", 40, 36).getNearThreshold());
+        assertEquals(35, change("m", 40, 38).getNearThreshold());
+        assertEquals(0, change("m", 40, 39).getNearThreshold());
+
+        assertEquals(0, change("m", 400, 325).getNearThreshold());
+        assertEquals(325, change("m", 400, 326).getNearThreshold());
+        assertEquals(325, change("m", 400, 357).getNearThreshold());
+        assertEquals(0, change("m", 400, 358).getNearThreshold());
+
+        assertEquals(0, change("m", 9000, 8000).getNearThreshold());
+        assertEquals(8000, change("m", 9000, 8001).getNearThreshold());
+        assertEquals(8000, change("m", 9000, 8800).getNearThreshold());
+        assertEquals(0, change("m", 9000, 8801).getNearThreshold());
+    }
+
+    @Test
+    public void testOrdering(){
+        MethodSizeChange underMaxInline = change("underMaxInline", 36, 35);
+        MethodSizeChange underFreqInline = change("underFreqInline", 400, 300);
+        MethodSizeChange underHuge = change("underHuge", 8100, 7000);
+        MethodSizeChange nearMaxInline = change("nearMaxInline", 60, 37);
+        MethodSizeChange nearFreqInline = change("nearFreqInline", 340, 330);
+        MethodSizeChange bigSaving = change("bigSaving", 200, 100);
+        MethodSizeChange smallSaving = change("smallSaving", 200, 190);
+
+        List<MethodSizeChange> changes = new ArrayList<MethodSizeChange>(Arrays.asList(
+                smallSaving, nearFreqInline, underHuge, bigSaving, nearMaxInline, underFreqInline, underMaxInline));
+        Collections.sort(changes);
+
+        // Crossings first by threshold, then near misses by threshold, then the rest by bytes saved
+        assertEquals(Arrays.asList(underMaxInline, underFreqInline, underHuge, nearMaxInline, nearFreqInline, bigSaving, smallSaving),
+                changes);
+    }
+
+    @Test
+    public void testToString(){
+        assertEquals("Test.m: 36 -> 35 bytes [now under 35]", change("m", 36, 35).toString());
+        assertEquals("Test.m: 400 -> 326 bytes [just above 325]", change("m", 400, 326).toString());
+        assertEquals("Test.m: 200 -> 100 bytes", change("m", 200, 100).toString());
+    }
+
+}
@@ -0,0 +1,56 @@
+package comp0012.target;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test folding of comparisons with constant operands and nested loops
+ */
+public class BranchFoldingTest {
+
+    BranchFolding bf = new BranchFolding();
+
+    @Test
+    public void testMethodOne(){
+        assertEquals(1, bf.methodOne());
+    }
+
+    @Test
+    public void testMethodTwo(){
+        assertEquals(10, bf.methodTwo());
+    }
+
+    @Test
+    public void testMethodThree(){
+        assertEquals(1, bf.methodThree());
+    }
+
+    @Test
+    public void testMethodFour(){
+        assertEquals(12, bf.methodFour());
+    }
+
+    @Test
+    public void testMethodFive(){
+        assertEquals(3, bf.methodFive());
+    }
+
+    @Test
+    public void testMethodSix(){
+        assertEquals(4, bf.methodSix());
+    }
+
+    @Test
+    public void testMethodSeven(){
+        assertEquals(2, bf.methodSeven(0));
+        assertEquals(6, bf.methodSeven(2));
+    }
+
+    @Test
+    public void testMethodEight(){
+        assertEquals(3, bf.methodEight(0));
+        assertEquals(15, bf.methodEight(2));
+    }
+
+}
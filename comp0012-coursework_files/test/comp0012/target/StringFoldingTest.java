@@ -0,0 +1,55 @@
+package comp0012.target;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test string and pure method call folding
+ */
+public class StringFoldingTest {
+
+    StringFolding sf = new StringFolding();
+
+    @Test
+    public void testMethodOne(){
+        assertEquals("key-42/true", sf.methodOne());
+    }
+
+    @Test
+    public void testMethodTwo(){
+        assertEquals("user:7", sf.methodTwo());
+    }
+
+    @Test
+    public void testMethodThree(){
+        assertEquals(14, sf.methodThree());
+    }
+
+    @Test
+    public void testMethodFour(){
+        assertEquals(1300, sf.methodFour());
+    }
+
+    @Test
+    public void testMethodFive(){
+        assertEquals(2.25, sf.methodFive(), 0.0);
+    }
+
+    @Test
+    public void testMethodSix(){
+        assertEquals("user:7", sf.methodSix());
+    }
+
+    @Test
+    public void testMethodSeven(){
+        assertEquals("n=4", sf.methodSeven(4));
+    }
+
+    @Test
+    public void testMethodEight(){
+        assertEquals("t5,x,true,1.5,[],null1", sf.methodEight(5L, 'x', true, 1.5, new java.util.ArrayList<Object>(), null));
+        assertEquals("t-1,y,false,0.0,o,s2", sf.methodEight(-1L, 'y', false, 0.0, "o", "s"));
+    }
+
+}
@@ -0,0 +1,66 @@
+package comp0012.target;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test folding of switches on constant selectors and narrowing of switches on masked selectors
+ */
+public class SwitchFoldingTest {
+
+    SwitchFolding sf = new SwitchFolding();
+
+    @Test
+    public void testMethodOne(){
+        assertEquals(20, sf.methodOne());
+    }
+
+    @Test
+    public void testMethodTwo(){
+        assertEquals(5, sf.methodTwo());
+    }
+
+    @Test
+    public void testMethodThree(){
+        assertEquals(-1, sf.methodThree());
+    }
+
+    @Test
+    public void testMethodFour(){
+        assertEquals(10, sf.methodFour(4));
+        assertEquals(11, sf.methodFour(5));
+        assertEquals(13, sf.methodFour(-1));
+    }
+
+    @Test
+    public void testMethodFive(){
+        assertEquals(1, sf.methodFive(8));
+        assertEquals(2, sf.methodFive(13));
+        assertEquals(0, sf.methodFive(12));
+    }
+
+    @Test
+    public void testMethodSix(){
+        assertEquals(6, sf.methodSix(1));
+        assertEquals(8, sf.methodSix(2));
+    }
+
+    @Test
+    public void testMethodSeven(){
+        assertEquals(12, sf.methodSeven(0));
+        assertEquals(15, sf.methodSeven(3));
+    }
+
+    @Test
+    public void testMethodEight(){
+        assertEquals(15, sf.methodEight(3));
+    }
+
+    @Test
+    public void testMethodNine(){
+        assertEquals(10, sf.methodNine(0));
+        assertEquals(11, sf.methodNine(3));
+    }
+
+}
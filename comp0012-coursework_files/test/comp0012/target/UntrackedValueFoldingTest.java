@@ -0,0 +1,34 @@
+package comp0012.target;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test that constants already consumed by calls or field stores are not folded into later arithmetic
+ */
+public class UntrackedValueFoldingTest {
+
+    UntrackedValueFolding uvf = new UntrackedValueFolding();
+
+    @Test
+    public void testMethodOne(){
+        assertEquals(5, uvf.methodOne());
+    }
+
+    @Test
+    public void testMethodTwo(){
+        assertEquals(5, uvf.methodTwo());
+    }
+
+    @Test
+    public void testMethodThree(){
+        assertEquals(4L, uvf.methodThree());
+    }
+
+    @Test
+    public void testMethodFour(){
+        assertEquals(16, uvf.methodFour());
+    }
+
+}